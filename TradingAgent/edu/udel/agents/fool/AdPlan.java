@@ -0,0 +1,68 @@
+package edu.udel.agents.fool;
+
+import edu.umich.eecs.tac.props.Ad;
+
+import java.util.Arrays;
+
+/**
+ * The {@link Ad} chosen for each query slot for the current day. The plan is computed
+ * once and then shared by every step of the bid computation. It is invalidated whenever
+ * new reports arrive, since they change the rankings the choice is based on.
+ */
+public class AdPlan {
+
+	//Ad of each slot
+	private Ad[] ads = new Ad[0];
+
+	//Whether the ads are up to date
+	private boolean valid = false;
+
+	/**
+	 * Prepares the plan for a new query space.
+	 * @param queries number of query slots
+	 */
+	public void setup(int queries) {
+		if (ads.length < queries)
+			ads = new Ad[queries];
+		else
+			Arrays.fill(ads, null);
+		valid = false;
+	}
+
+	/**
+	 * @return true if the ads are up to date
+	 */
+	public boolean isValid() {
+		return valid;
+	}
+
+	/**
+	 * Marks the ads as up to date.
+	 */
+	public void validate() {
+		valid = true;
+	}
+
+	/**
+	 * Marks the ads as out of date, they will be chosen again before their next use.
+	 */
+	public void invalidate() {
+		valid = false;
+	}
+
+	/**
+	 * @param slot
+	 * @return the Ad planned for the slot
+	 */
+	public Ad get(int slot) {
+		return ads[slot];
+	}
+
+	/**
+	 * @param slot
+	 * @param ad the Ad planned for the slot
+	 */
+	public void set(int slot, Ad ad) {
+		ads[slot] = ad;
+	}
+}
@@ -0,0 +1,304 @@
+package edu.udel.agents.fool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * The tunable constants of the bidding strategy of {@link FoolAgent}. Instances are
+ * immutable: {@link #with(Parameter, double)} returns a modified copy. Parameters are
+ * stored as properties files keyed by the parameter names, and any parameter missing
+ * from a file keeps its default value.
+ */
+public final class AgentParameters {
+
+	/**
+	 * A tunable constant, with its default value and the range it is searched in.
+	 */
+	public enum Parameter {
+		//Percentage of total revenue to be spent on ads
+		AD_REVENUE_RATIO_PERCENT("adRevenueRatioPercent", 0.2, 0.05, 0.5, false),
+		//Base bid as a percentage of the sales profit of a product
+		BASE_BID_PER_PRODUCT_REVENUE_PERCENT("baseBidPerProductRevenuePercent", 0.09, 0.02, 0.3, false),
+		//Agressive bidding initial days
+		INITIAL_SIMULATION_DAYS("initialSimulationDays", 5, 0, 15, true),
+		//Agressive bid percent
+		AGGRESSIVE_BID_PERCENT("aggressiveBidPercent", 1.0, 0.5, 2, false),
+		//Bid percent on a spike
+		SPIKE_BID_PERCENT("spikeBidPercent", 1.1, 0.5, 2, false),
+		//Maximum bid multiplicative factor
+		MAX_BID_FACTOR("maxBidFactor", 4, 1, 10, false),
+		//Spike interval percent
+		MIN_SPIKE_IMPRESSIONS_DIFFERENCE("minSpikeImpressionsDifference", 0.15, 0.05, 1, false),
+		//Decay of the rank modifier, which is at most exp(rankLambda)
+		RANK_LAMBDA("rankLambda", 0.18, 0, 1, false),
+		//Modifier of a query in both specialties of the agent
+		BOTH_SPECIALTIES_MODIFIER("bothSpecialtiesModifier", 1.44, 1, 2, false),
+		//Modifier of a query in one specialty of the agent
+		ONE_SPECIALTY_MODIFIER("oneSpecialtyModifier", 1.2, 1, 2, false),
+		//Modifiers of F0, F1 and F2 queries
+		F0_MODIFIER("f0Modifier", 0.8, 0.5, 1.5, false),
+		F1_MODIFIER("f1Modifier", 1, 0.5, 1.5, false),
+		F2_MODIFIER("f2Modifier", 1.2, 0.5, 1.5, false);
+
+		private final String key;
+		private final double defaultValue;
+		private final double min;
+		private final double max;
+		private final boolean integer;
+
+		Parameter(String key, double defaultValue, double min, double max, boolean integer) {
+			this.key = key;
+			this.defaultValue = defaultValue;
+			this.min = min;
+			this.max = max;
+			this.integer = integer;
+		}
+
+		/**
+		 * @return name of the parameter in a parameters file
+		 */
+		public String getKey() {
+			return key;
+		}
+
+		public double getDefaultValue() {
+			return defaultValue;
+		}
+
+		/**
+		 * @return lowest value searched
+		 */
+		public double getMin() {
+			return min;
+		}
+
+		/**
+		 * @return highest value searched
+		 */
+		public double getMax() {
+			return max;
+		}
+
+		/**
+		 * @return true if the parameter only takes whole values
+		 */
+		public boolean isInteger() {
+			return integer;
+		}
+
+		/**
+		 * @param key
+		 * @return the parameter with a name, or null if there is none
+		 */
+		public static Parameter forKey(String key) {
+			for (Parameter parameter : values())
+				if (parameter.key.equals(key))
+					return parameter;
+			return null;
+		}
+	}
+
+	//System property naming the parameters file loaded by the agent
+	public static final String FILE_PROPERTY = "fool.parameters";
+
+	//Parameters file loaded by the agent when the property is not set, if it exists
+	public static final String DEFAULT_FILE = "fool.parameters";
+
+	public static final AgentParameters DEFAULTS = new AgentParameters(defaultValues());
+
+	private final double[] values;
+
+	private AgentParameters(double[] values) {
+		this.values = values;
+	}
+
+	private static double[] defaultValues() {
+		Parameter[] parameters = Parameter.values();
+		double[] values = new double[parameters.length];
+		for (Parameter parameter : parameters)
+			values[parameter.ordinal()] = parameter.defaultValue;
+		return values;
+	}
+
+	/**
+	 * @param parameter
+	 * @return value of a parameter
+	 */
+	public double get(Parameter parameter) {
+		return values[parameter.ordinal()];
+	}
+
+	/**
+	 * @param parameter
+	 * @param value new value, rounded for an integer parameter
+	 * @return a copy of these parameters with a different value for one parameter
+	 */
+	public AgentParameters with(Parameter parameter, double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			throw new IllegalArgumentException(parameter.key + " must be finite: " + value);
+		double[] copy = values.clone();
+		copy[parameter.ordinal()] = parameter.integer ? Math.round(value) : value;
+		return new AgentParameters(copy);
+	}
+
+	public double getAdRevenueRatioPercent() {
+		return get(Parameter.AD_REVENUE_RATIO_PERCENT);
+	}
+
+	public double getBaseBidPerProductRevenuePercent() {
+		return get(Parameter.BASE_BID_PER_PRODUCT_REVENUE_PERCENT);
+	}
+
+	public int getInitialSimulationDays() {
+		return (int) get(Parameter.INITIAL_SIMULATION_DAYS);
+	}
+
+	public double getAggressiveBidPercent() {
+		return get(Parameter.AGGRESSIVE_BID_PERCENT);
+	}
+
+	public double getSpikeBidPercent() {
+		return get(Parameter.SPIKE_BID_PERCENT);
+	}
+
+	public double getMaxBidFactor() {
+		return get(Parameter.MAX_BID_FACTOR);
+	}
+
+	public double getMinSpikeImpressionsDifference() {
+		return get(Parameter.MIN_SPIKE_IMPRESSIONS_DIFFERENCE);
+	}
+
+	public double getRankLambda() {
+		return get(Parameter.RANK_LAMBDA);
+	}
+
+	public double getBothSpecialtiesModifier() {
+		return get(Parameter.BOTH_SPECIALTIES_MODIFIER);
+	}
+
+	public double getOneSpecialtyModifier() {
+		return get(Parameter.ONE_SPECIALTY_MODIFIER);
+	}
+
+	/**
+	 * @param type 0 for F0, 1 for F1, 2 for F2
+	 * @return modifier of the queries of a type
+	 */
+	public double getTypeModifier(int type) {
+		if (type == 2)
+			return get(Parameter.F2_MODIFIER);
+		else if (type == 0)
+			return get(Parameter.F0_MODIFIER);
+		return get(Parameter.F1_MODIFIER);
+	}
+
+	/**
+	 * Reads parameters from a properties file. Parameters missing from the file keep
+	 * their default value.
+	 * @param file
+	 * @return
+	 * @throws IOException if the file cannot be read or holds an unknown parameter or an invalid value
+	 */
+	public static AgentParameters load(String file) throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+
+		AgentParameters parameters = DEFAULTS;
+		for (String key : properties.stringPropertyNames()) {
+			Parameter parameter = Parameter.forKey(key);
+			if (parameter == null)
+				throw new IOException("Unknown parameter " + key + " in " + file);
+			try {
+				parameters = parameters.with(parameter, Double.parseDouble(properties.getProperty(key).trim()));
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Invalid value of " + key + " in " + file + ": " + properties.getProperty(key));
+			}
+		}
+		return parameters;
+	}
+
+	/**
+	 * @return the parameters file the agent loads, or null if it runs with the defaults
+	 * @see #loadConfigured()
+	 */
+	public static String configuredFile() {
+		String file = System.getProperty(FILE_PROPERTY);
+		if (file == null && new File(DEFAULT_FILE).isFile())
+			file = DEFAULT_FILE;
+		return file;
+	}
+
+	/**
+	 * Loads the parameters the agent runs with: the file named by the
+	 * {@link #FILE_PROPERTY} system property, else {@link #DEFAULT_FILE} if it exists,
+	 * else the defaults. A file that cannot be loaded is reported and the defaults are used.
+	 * @return
+	 */
+	public static AgentParameters loadConfigured() {
+		String file = configuredFile();
+		if (file == null)
+			return DEFAULTS;
+		try {
+			return load(file);
+		} catch (IOException e) {
+			System.err.println("Could not load agent parameters " + file + ", using defaults: " + e);
+			return DEFAULTS;
+		}
+	}
+
+	/**
+	 * Writes the parameters to a properties file.
+	 * @param file
+	 * @param comment first line of the file, or null
+	 * @throws IOException
+	 */
+	public void save(String file, String comment) throws IOException {
+		Properties properties = new Properties();
+		for (Parameter parameter : Parameter.values())
+			properties.setProperty(parameter.key, format(parameter));
+		OutputStream out = new FileOutputStream(file);
+		try {
+			properties.store(out, comment);
+		} finally {
+			out.close();
+		}
+	}
+
+	private String format(Parameter parameter) {
+		double value = get(parameter);
+		return parameter.integer ? String.valueOf((long) value) : String.valueOf(value);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof AgentParameters && Arrays.equals(values, ((AgentParameters) o).values);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(values);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		for (Parameter parameter : Parameter.values()) {
+			if (s.length() > 0)
+				s.append(' ');
+			s.append(parameter.key).append('=').append(format(parameter));
+		}
+		return s.toString();
+	}
+}
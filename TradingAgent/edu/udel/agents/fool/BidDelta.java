@@ -0,0 +1,175 @@
+package edu.udel.agents.fool;
+
+import edu.umich.eecs.tac.props.Ad;
+import edu.umich.eecs.tac.props.BidBundle;
+import edu.umich.eecs.tac.props.Query;
+
+import java.util.Arrays;
+
+/**
+ * The bid and {@link Ad} last sent to the publisher for each query slot. The publisher
+ * keeps the previous bid when it receives a NaN bid and the previous ad when it receives
+ * a null ad, so a query only needs to be part of the bid bundle when its bid moved by
+ * more than the tolerance or its ad changed. Daily spend limits are tracked the same way,
+ * a limit is sent when it moved by more than a share of the last one sent.
+ * <p>
+ * A bundle sent on day d is used for the auctions of day d + 1, which are reported on day
+ * d + 2. The bids sent by the end of each of the last two days are therefore kept, so
+ * that the reports of a day can be matched with the bids that produced them.
+ */
+public class BidDelta {
+
+	//Bid last sent for each slot, NaN if none was sent
+	private double[] bids = new double[0];
+
+	//Ad last sent for each slot, null if none was sent
+	private Ad[] ads = new Ad[0];
+
+	//Spend limit last sent for each slot, NaN if none was sent
+	private double[] limits = new double[0];
+
+	//Bids sent by the end of the previous day, in effect for today's auctions, and by the
+	//end of the day before, in effect for the auctions of today's reports; NaN if none
+	private double[] todayBids = new double[0];
+	private double[] reportedBids = new double[0];
+
+	//Smallest bid change that is sent
+	private final double tolerance;
+
+	//Smallest spend limit change that is sent, as a share of the last limit sent
+	private final double limitTolerance;
+
+	/**
+	 * @param tolerance smallest bid change that is sent to the publisher
+	 */
+	public BidDelta(double tolerance) {
+		this(tolerance, 0);
+	}
+
+	/**
+	 * @param tolerance smallest bid change that is sent to the publisher
+	 * @param limitTolerance smallest spend limit change that is sent, as a share of the last limit
+	 */
+	public BidDelta(double tolerance, double limitTolerance) {
+		this.tolerance = tolerance;
+		this.limitTolerance = limitTolerance;
+	}
+
+	/**
+	 * Prepares for a new query space. Nothing has been sent yet.
+	 * @param queries number of query slots
+	 */
+	public void setup(int queries) {
+		if (bids.length < queries) {
+			bids = new double[queries];
+			ads = new Ad[queries];
+			limits = new double[queries];
+			todayBids = new double[queries];
+			reportedBids = new double[queries];
+		}
+		reset();
+		Arrays.fill(todayBids, Double.NaN);
+		Arrays.fill(reportedBids, Double.NaN);
+	}
+
+	/**
+	 * Forgets what was sent, the next bundle holds every query. The bids in effect at the
+	 * publisher are still known.
+	 */
+	public void reset() {
+		Arrays.fill(bids, Double.NaN);
+		Arrays.fill(ads, null);
+		Arrays.fill(limits, Double.NaN);
+	}
+
+	/**
+	 * @param slot
+	 * @return true if a bid has been sent for the slot
+	 */
+	public boolean isSent(int slot) {
+		return !Double.isNaN(bids[slot]);
+	}
+
+	/**
+	 * @param slot
+	 * @return the bid last sent for the slot, NaN if none was sent
+	 */
+	public double getBid(int slot) {
+		return bids[slot];
+	}
+
+	/**
+	 * Ends the day: the bids sent so far are used for the auctions of the next day, and
+	 * those sent by the end of the previous day are the ones the next reports cover.
+	 */
+	public void endDay() {
+		double[] oldest = reportedBids;
+		reportedBids = todayBids;
+		todayBids = oldest;
+		// The publisher keeps its bid for a query whose sent bid was forgotten
+		for (int slot = 0; slot < todayBids.length; slot++)
+			todayBids[slot] = Double.isNaN(bids[slot]) ? reportedBids[slot] : bids[slot];
+	}
+
+	/**
+	 * @param slot
+	 * @return the bid in effect for the auctions covered by today's reports, those of the
+	 * previous day, NaN if no bid had been sent for them
+	 */
+	public double getReportedBid(int slot) {
+		return reportedBids[slot];
+	}
+
+	/**
+	 * Adds a query to a bundle if its bid or ad changed since they were last sent, and
+	 * remembers them as sent.
+	 * @param bidBundle
+	 * @param slot
+	 * @param query
+	 * @param bid
+	 * @param ad
+	 * @return true if the query was added to the bundle
+	 */
+	public boolean add(BidBundle bidBundle, int slot, Query query, double bid, Ad ad) {
+		return add(bidBundle, slot, query, bid, ad, Double.NaN);
+	}
+
+	/**
+	 * Same as {@link #add(BidBundle, int, Query, double, Ad)}, with the daily spend limit
+	 * of the query, which is sent if it changed as well. The bundle is appended to, it is
+	 * never searched, so building it takes time linear in the number of queries.
+	 * @param bidBundle
+	 * @param slot
+	 * @param query
+	 * @param bid
+	 * @param ad
+	 * @param spendLimit NaN to keep the previous limit
+	 * @return true if the query was added to the bundle
+	 */
+	public boolean add(BidBundle bidBundle, int slot, Query query, double bid, Ad ad, double spendLimit) {
+		boolean bidChanged = Double.isNaN(bids[slot]) || Math.abs(bid - bids[slot]) > tolerance;
+		boolean adChanged = ad != null && !ad.equals(ads[slot]);
+		boolean limitChanged = limitChanged(limits[slot], spendLimit);
+		if (!bidChanged && !adChanged && !limitChanged)
+			return false;
+
+		if (bidChanged)
+			bids[slot] = bid;
+		if (adChanged)
+			ads[slot] = ad;
+		if (limitChanged)
+			limits[slot] = spendLimit;
+		bidBundle.addQuery(query, bidChanged ? bid : Double.NaN, adChanged ? ad : null,
+				limitChanged ? spendLimit : Double.NaN);
+		return true;
+	}
+
+	private boolean limitChanged(double sent, double limit) {
+		if (Double.isNaN(limit) || limit == sent)
+			return false;
+		// Moving to or from no limit is always a change
+		if (Double.isNaN(sent) || Double.isInfinite(sent) || Double.isInfinite(limit))
+			return true;
+		return Math.abs(limit - sent) > limitTolerance * sent;
+	}
+}
@@ -0,0 +1,228 @@
+package edu.udel.agents.fool;
+
+import java.util.Arrays;
+
+/**
+ * Bid landscape of every query: the bid of the agent, the position it reached, the cost
+ * per click and the impressions of each of the last days, and a monotone fit of the
+ * position against the bid.
+ * <p>
+ * The observations of a query are kept in a ring of {@link #getHistoryDays()} entries,
+ * and in a second array in order of increasing bid that is kept sorted as observations
+ * come and go. After each observation the position is fitted by pool adjacent violators,
+ * weighted by impressions, into blocks of non-increasing position: a higher bid never
+ * gives a worse position. Days the agent was not shown count as the position after the
+ * last slot. Finding the cheapest bid that reaches a position is then a binary search
+ * over the blocks.
+ * <p>
+ * Every column is a flat array with {@link #getHistoryDays()} entries per slot.
+ */
+public class BidLandscape {
+
+	//Number of days kept for each query
+	private final int historyDays;
+
+	//Position given to the days the agent was not shown
+	private double lostPosition;
+
+	private int size = 0;
+
+	//Observations of each query, in a ring starting at ringStart
+	double[] bid = new double[0];
+	double[] position = new double[0];
+	double[] cpc = new double[0];
+	double[] impressions = new double[0];
+	private int[] ringStart = new int[0];
+	private int[] count = new int[0];
+
+	//Ring entries of each query, in order of increasing bid
+	private int[] byBid = new int[0];
+
+	//Fitted blocks of each query: lowest bid, position and weight
+	private double[] blockBid = new double[0];
+	private double[] blockPosition = new double[0];
+	private double[] blockWeight = new double[0];
+	private int[] blocks = new int[0];
+
+	/**
+	 * @param historyDays number of days kept for each query
+	 * @param lostPosition position given to the days the agent was not shown
+	 */
+	public BidLandscape(int historyDays, double lostPosition) {
+		this.historyDays = historyDays;
+		this.lostPosition = lostPosition;
+	}
+
+	/**
+	 * Prepares the landscape of a query space. Nothing has been observed.
+	 * @param slots number of query slots
+	 */
+	public void setup(int slots) {
+		int entries = slots * historyDays;
+		if (ringStart.length < slots) {
+			bid = new double[entries];
+			position = new double[entries];
+			cpc = new double[entries];
+			impressions = new double[entries];
+			byBid = new int[entries];
+			blockBid = new double[entries];
+			blockPosition = new double[entries];
+			blockWeight = new double[entries];
+			ringStart = new int[slots];
+			count = new int[slots];
+			blocks = new int[slots];
+		}
+		size = slots;
+		Arrays.fill(ringStart, 0, slots, 0);
+		Arrays.fill(count, 0, slots, 0);
+		Arrays.fill(blocks, 0, slots, 0);
+	}
+
+	/**
+	 * Sets the position given to the days the agent was not shown, one past the last slot
+	 * of the auctions. The fits are updated with the next observations.
+	 * @param lostPosition
+	 */
+	public void setLostPosition(double lostPosition) {
+		this.lostPosition = lostPosition;
+	}
+
+	public int getHistoryDays() {
+		return historyDays;
+	}
+
+	/**
+	 * @return number of query slots
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Adds the outcome of a day, replacing the oldest day when the history is full.
+	 * @param slot
+	 * @param bid bid in effect for the query
+	 * @param position average position of the agent, NaN if it was not shown
+	 * @param cpc average cost per click
+	 * @param impressions
+	 */
+	public void observe(int slot, double bid, double position, double cpc, double impressions) {
+		int base = slot * historyDays;
+		int n = count[slot];
+		if (n == historyDays) {
+			// The oldest day leaves the ring and the bid order
+			int oldest = base + ringStart[slot];
+			int j = base;
+			while (byBid[j] != oldest)
+				j++;
+			System.arraycopy(byBid, j + 1, byBid, j, base + n - 1 - j);
+			ringStart[slot] = (ringStart[slot] + 1) % historyDays;
+			n--;
+		}
+
+		int entry = base + (ringStart[slot] + n) % historyDays;
+		this.bid[entry] = bid;
+		this.position[entry] = position;
+		this.cpc[entry] = cpc;
+		this.impressions[entry] = impressions;
+
+		// Inserted after the days with the same bid
+		int j = base + n;
+		while (j > base && this.bid[byBid[j - 1]] > bid) {
+			byBid[j] = byBid[j - 1];
+			j--;
+		}
+		byBid[j] = entry;
+		count[slot] = n + 1;
+
+		fit(slot);
+	}
+
+	/**
+	 * Fits the positions of a query by pool adjacent violators, in order of increasing bid.
+	 */
+	private void fit(int slot) {
+		int base = slot * historyDays;
+		int top = base - 1;
+		for (int j = base; j < base + count[slot]; j++) {
+			int entry = byBid[j];
+			double value = Double.isNaN(position[entry]) ? lostPosition : position[entry];
+			double weight = Math.max(1, impressions[entry]);
+			top++;
+			blockBid[top] = bid[entry];
+			blockPosition[top] = value;
+			blockWeight[top] = weight;
+			// A block with a better position than the next higher bid is pooled with it
+			while (top > base && blockPosition[top - 1] < blockPosition[top]) {
+				double pooled = blockWeight[top - 1] + blockWeight[top];
+				blockPosition[top - 1] = (blockPosition[top - 1] * blockWeight[top - 1]
+						+ blockPosition[top] * blockWeight[top]) / pooled;
+				blockWeight[top - 1] = pooled;
+				top--;
+			}
+		}
+		blocks[slot] = top - base + 1;
+	}
+
+	/**
+	 * @param slot
+	 * @return number of days observed for the query
+	 */
+	public int count(int slot) {
+		return count[slot];
+	}
+
+	/**
+	 * @param slot
+	 * @param day 0 for the oldest day kept, up to {@link #count(int)} - 1 for the latest
+	 * @return entry of the day in the observation columns
+	 */
+	public int entry(int slot, int day) {
+		return slot * historyDays + (ringStart[slot] + day) % historyDays;
+	}
+
+	/**
+	 * This returns the cheapest bid that reached a position, according to the fit
+	 * @param slot
+	 * @param target position to reach, 1 for the top slot
+	 * @return the lowest observed bid whose fitted position is at most the target, or NaN
+	 * if no observed bid reached it
+	 */
+	public double cheapestBid(int slot, double target) {
+		int base = slot * historyDays;
+		// Fitted positions do not increase with the bid, find the first block that reaches the target
+		int low = base;
+		int high = base + blocks[slot];
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (blockPosition[middle] <= target)
+				high = middle;
+			else
+				low = middle + 1;
+		}
+		return low < base + blocks[slot] ? blockBid[low] : Double.NaN;
+	}
+
+	/**
+	 * @param slot
+	 * @param bid
+	 * @return fitted position for a bid, the lost position below the lowest observed bid,
+	 * or NaN if nothing was observed
+	 */
+	public double fittedPosition(int slot, double bid) {
+		int base = slot * historyDays;
+		if (blocks[slot] == 0)
+			return Double.NaN;
+		// Last block starting at or below the bid
+		int low = base;
+		int high = base + blocks[slot];
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (blockBid[middle] <= bid)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low == base ? lostPosition : blockPosition[low - 1];
+	}
+}
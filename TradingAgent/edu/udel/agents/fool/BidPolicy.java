@@ -0,0 +1,194 @@
+package edu.udel.agents.fool;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Computes the bids of the whole query space at once. Every factor of the bid modifier
+ * is a column addressed by slot: the specialty and type factors are set once per
+ * catalog, the rank and lose factors once per day, and the capacity factor is a scalar
+ * shared by all queries. The columns are combined in plain loops over arrays, with no
+ * call or lookup per query, which the JIT compiles to vector instructions.
+ * <p>
+ * Each query is given a {@link DecisionLog.Mode} for the day, and the bids of each mode
+ * are computed by the {@link Rule} of that mode.
+ */
+public class BidPolicy {
+
+	/**
+	 * Computes the bids of a range of slots from their base bids, maximum bids and modifiers.
+	 */
+	public interface Rule {
+		void bid(double[] baseBid, double[] maxBid, double[] modifier, double[] bid, int from, int to);
+	}
+
+	/**
+	 * Bids a share of the modified base bid, never less than the base bid.
+	 */
+	public static class Floored implements Rule {
+
+		private final double percent;
+
+		public Floored(double percent) {
+			this.percent = percent;
+		}
+
+		@Override
+		public void bid(double[] baseBid, double[] maxBid, double[] modifier, double[] bid, int from, int to) {
+			for (int i = from; i < to; i++)
+				bid[i] = Math.max(baseBid[i], baseBid[i] * percent * modifier[i]);
+		}
+	}
+
+	/**
+	 * Bids the modified base bid, never more than the maximum bid.
+	 */
+	public static final Rule CAPPED = new Rule() {
+		@Override
+		public void bid(double[] baseBid, double[] maxBid, double[] modifier, double[] bid, int from, int to) {
+			for (int i = from; i < to; i++)
+				bid[i] = Math.min(maxBid[i], baseBid[i] * modifier[i]);
+		}
+	};
+
+	private static final DecisionLog.Mode[] MODES = DecisionLog.Mode.values();
+
+	//Rule of each mode
+	private final Rule[] rules = new Rule[MODES.length];
+
+	private int size = 0;
+
+	//Factors of the bid modifier of each slot
+	double[] rankFactor = new double[0];
+	double[] specialtyFactor = new double[0];
+	double[] typeFactor = new double[0];
+	double[] loseFactor = new double[0];
+
+	//Bid modifier of each slot, the product of its factors and the capacity factor
+	double[] modifier = new double[0];
+
+	//Mode of each slot, as the ordinal of its DecisionLog.Mode
+	byte[] mode = new byte[0];
+
+	//Bid of each slot
+	double[] bid = new double[0];
+
+	//Bids of a rule that applies to some of the slots only
+	private double[] partial = new double[0];
+
+	//Number of slots of each mode
+	private final int[] counts = new int[MODES.length];
+
+	/**
+	 * Sets the rule that computes the bids of a mode.
+	 * @param mode
+	 * @param rule
+	 */
+	public void setRule(DecisionLog.Mode mode, Rule rule) {
+		rules[mode.ordinal()] = rule;
+	}
+
+	/**
+	 * Prepares the columns for a query space. All factors are 1.
+	 * @param slots number of query slots
+	 */
+	public void setup(int slots) {
+		if (rankFactor.length < slots) {
+			rankFactor = new double[slots];
+			specialtyFactor = new double[slots];
+			typeFactor = new double[slots];
+			loseFactor = new double[slots];
+			modifier = new double[slots];
+			mode = new byte[slots];
+			bid = new double[slots];
+			partial = new double[slots];
+		}
+		size = slots;
+		Arrays.fill(rankFactor, 0, slots, 1);
+		Arrays.fill(specialtyFactor, 0, slots, 1);
+		Arrays.fill(typeFactor, 0, slots, 1);
+		Arrays.fill(loseFactor, 0, slots, 1);
+	}
+
+	/**
+	 * @return number of query slots
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Computes the rank factor of every slot, exp(lambda) for the most popular query down
+	 * to 1 for the least popular one.
+	 * @param rank rank of each slot, between 0 and 1
+	 * @param lambda
+	 */
+	public void rankFactors(double[] rank, double lambda) {
+		for (int i = 0; i < size; i++)
+			rankFactor[i] = Math.exp(lambda * (1 - rank[i]));
+	}
+
+	/**
+	 * Gives every slot the same mode, or the spike mode to the slots with a spike and the
+	 * regular mode to the others.
+	 * @param initial true during the initial days of the simulation
+	 * @param spikes slots with a spike
+	 */
+	public void selectModes(boolean initial, BitSet spikes) {
+		if (initial) {
+			Arrays.fill(mode, 0, size, (byte) DecisionLog.Mode.INITIAL.ordinal());
+			return;
+		}
+		Arrays.fill(mode, 0, size, (byte) DecisionLog.Mode.REGULAR.ordinal());
+		for (int i = spikes.nextSetBit(0); i >= 0 && i < size; i = spikes.nextSetBit(i + 1))
+			mode[i] = (byte) DecisionLog.Mode.SPIKE.ordinal();
+	}
+
+	/**
+	 * Computes the modifier and the bid of every slot.
+	 * @param baseBid base bid of each slot
+	 * @param maxBid maximum bid of each slot
+	 * @param capacityFactor capacity factor of the day
+	 */
+	public void evaluate(double[] baseBid, double[] maxBid, double capacityFactor) {
+		for (int i = 0; i < size; i++)
+			modifier[i] = rankFactor[i] * specialtyFactor[i] * typeFactor[i] * loseFactor[i] * capacityFactor;
+
+		Arrays.fill(counts, 0);
+		for (int i = 0; i < size; i++)
+			counts[mode[i]]++;
+		for (int m = 0; m < MODES.length; m++) {
+			if (counts[m] == 0)
+				continue;
+			if (rules[m] == null)
+				throw new IllegalStateException("No bid rule for mode " + MODES[m]);
+			if (counts[m] == size) {
+				rules[m].bid(baseBid, maxBid, modifier, bid, 0, size);
+				continue;
+			}
+			// The rule is evaluated for all slots and kept for its own, which is cheaper
+			// than gathering them as long as there are few modes
+			rules[m].bid(baseBid, maxBid, modifier, partial, 0, size);
+			byte selected = (byte) m;
+			for (int i = 0; i < size; i++)
+				if (mode[i] == selected)
+					bid[i] = partial[i];
+		}
+	}
+
+	/**
+	 * @param slot
+	 * @return mode of the slot for the day
+	 */
+	public DecisionLog.Mode mode(int slot) {
+		return MODES[mode[slot]];
+	}
+
+	/**
+	 * @param slot
+	 * @return bid of the slot for the day
+	 */
+	public double bid(int slot) {
+		return bid[slot];
+	}
+}
@@ -0,0 +1,159 @@
+package edu.udel.agents.fool;
+
+import edu.umich.eecs.tac.props.BidBundle;
+
+import java.util.Arrays;
+
+/**
+ * Splits the daily ad budget among the queries. Each query is expected to bring a value
+ * and to cost an amount for the day, and the budget goes to the queries with the best
+ * value per unit of cost first, each receiving its expected cost, until the budget runs
+ * out or the remaining queries return less than they cost. This greedy order solves the
+ * fractional knapsack exactly.
+ * <p>
+ * The queries are ordered with a single sort of primitive keys, the value per cost as a
+ * float above the slot, so an allocation takes O(n log n) time and allocates nothing.
+ * <p>
+ * Queries funded in full have no limit of their own, so that a burst of searches is not
+ * cut, and are held back by the campaign limit only. A query funded in part is limited to
+ * its allocation with some headroom, as the costs of a day vary, and a query that gets
+ * nothing keeps a minimum limit so that its landscape keeps being observed. That minimum
+ * is a spend the agent always allows, not a share of the budget: it is not taken out of
+ * the budget, and a query funded in part is never limited below it either. Queries whose
+ * cost is unknown are left unlimited.
+ * <p>
+ * While the budget is unknown no limit is set, the previous ones being kept by the
+ * publisher. Once limits have been set, a day with an unknown budget lifts them all
+ * instead, so that the caps of an old budget do not stay in place.
+ */
+public class BudgetAllocator {
+
+	//Multiple of the allocation given as the spend limit, and of the budget as the campaign limit
+	private final double headroom;
+
+	//Lowest value per cost that is funded
+	private final double minimumReturn;
+
+	private int size = 0;
+
+	//Expected value and cost of each query for the day, set before each allocation
+	double[] value = new double[0];
+	double[] cost = new double[0];
+
+	//Spend limit of each query
+	double[] limit = new double[0];
+
+	//Spend limit of the campaign
+	private double campaignLimit = BidBundle.PERSISTENT_SPEND_LIMIT;
+
+	//Budget not given to any query by the last allocation
+	private double unallocated = 0;
+
+	//Whether an allocation has set limits since the setup
+	private boolean limited = false;
+
+	//Sort keys of the queries with a known cost
+	private long[] order = new long[0];
+
+	/**
+	 * @param headroom multiple of the allocation given as the spend limit, and of the budget
+	 * given as the campaign limit, at least 1
+	 * @param minimumReturn lowest value per unit of cost that is funded
+	 */
+	public BudgetAllocator(double headroom, double minimumReturn) {
+		this.headroom = headroom;
+		this.minimumReturn = minimumReturn;
+	}
+
+	/**
+	 * Prepares for a query space. Nothing is limited.
+	 * @param slots number of query slots
+	 */
+	public void setup(int slots) {
+		if (value.length < slots) {
+			value = new double[slots];
+			cost = new double[slots];
+			limit = new double[slots];
+			order = new long[slots];
+		}
+		size = slots;
+		Arrays.fill(value, 0, slots, 0);
+		Arrays.fill(cost, 0, slots, 0);
+		Arrays.fill(limit, 0, slots, BidBundle.PERSISTENT_SPEND_LIMIT);
+		campaignLimit = BidBundle.PERSISTENT_SPEND_LIMIT;
+		limited = false;
+	}
+
+	/**
+	 * @return number of query slots
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Allocates a budget according to the values and costs of the queries.
+	 * @param budget daily budget, NaN if it is unknown
+	 * @param minimumLimit smallest spend limit of each query not funded in full, whatever its allocation
+	 */
+	public void allocate(double budget, double[] minimumLimit) {
+		if (Double.isNaN(budget)) {
+			double none = limited ? BidBundle.NO_SPEND_LIMIT : BidBundle.PERSISTENT_SPEND_LIMIT;
+			Arrays.fill(limit, 0, size, none);
+			campaignLimit = none;
+			unallocated = 0;
+			return;
+		}
+		limited = true;
+
+		int n = 0;
+		for (int slot = 0; slot < size; slot++) {
+			if (cost[slot] > 0) {
+				// Positive floats keep their order as ints, so the keys sort by value per cost
+				float ratio = (float) Math.max(0, value[slot] / cost[slot]);
+				order[n++] = ((long) Float.floatToIntBits(ratio) << 32) | slot;
+			} else {
+				limit[slot] = BidBundle.NO_SPEND_LIMIT;
+			}
+		}
+		Arrays.sort(order, 0, n);
+
+		double remaining = budget;
+		for (int i = n - 1; i >= 0; i--) {
+			int slot = (int) order[i];
+			double allocation = 0;
+			if (remaining > 0 && value[slot] >= minimumReturn * cost[slot]) {
+				allocation = Math.min(cost[slot], remaining);
+				remaining -= allocation;
+			}
+			if (allocation == cost[slot])
+				limit[slot] = BidBundle.NO_SPEND_LIMIT;
+			else
+				limit[slot] = Math.max(minimumLimit[slot], headroom * allocation);
+		}
+		unallocated = remaining;
+		campaignLimit = headroom * budget;
+	}
+
+	/**
+	 * @param slot
+	 * @return spend limit of the query, NaN to keep the previous one
+	 */
+	public double getLimit(int slot) {
+		return limit[slot];
+	}
+
+	/**
+	 * @return spend limit of the campaign, NaN to keep the previous one
+	 */
+	public double getCampaignLimit() {
+		return campaignLimit;
+	}
+
+	/**
+	 * @return budget that no query could use in the last allocation
+	 */
+	public double getUnallocated() {
+		return unallocated;
+	}
+}
@@ -0,0 +1,122 @@
+package edu.udel.agents.fool;
+
+import edu.umich.eecs.tac.props.Ad;
+import edu.umich.eecs.tac.props.Product;
+import edu.umich.eecs.tac.props.Query;
+import edu.umich.eecs.tac.props.RetailCatalog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Canonical {@link Query}, {@link Product} and {@link Ad} instances of a retail catalog.
+ * The registry is built once when the catalog arrives and every domain object the agent
+ * uses afterwards comes from it, so the daily cycle creates none. Manufacturer and
+ * component names are interned as well: two names from the registry are equal exactly
+ * when they are the same instance, whichever message they were decoded from.
+ * <p>
+ * Queries are numbered from 0 in the order of the query space: the F0 query, then for
+ * each product its F1 manufacturer, F1 component and F2 queries, skipping duplicates.
+ */
+public class CatalogRegistry {
+
+	//Canonical instance of each manufacturer and component name
+	private final Map<String, String> names = new HashMap<String, String>();
+
+	//Id of each query, only used while the registry is built
+	private final Map<Query, Integer> ids = new HashMap<Query, Integer>();
+
+	private final List<Query> queries = new ArrayList<Query>();
+
+	//Ad of each query: the product ad of an F2 query, the generic ad of the F0 query, null for F1
+	private final List<Ad> ads = new ArrayList<Ad>();
+
+	private final Ad genericAd = new Ad();
+
+	/**
+	 * Replaces the content of the registry with the domain objects of a catalog.
+	 * @param retailCatalog
+	 */
+	public void build(RetailCatalog retailCatalog) {
+		names.clear();
+		ids.clear();
+		queries.clear();
+		ads.clear();
+		if (retailCatalog.size() > 0)
+			add(null, null);
+		for (Product product : retailCatalog) {
+			String manufacturer = intern(product.getManufacturer(), true);
+			String component = intern(product.getComponent(), true);
+			add(manufacturer, null);
+			add(null, component);
+			add(manufacturer, component);
+		}
+	}
+
+	private void add(String manufacturer, String component) {
+		Query query = new Query(manufacturer, component);
+		if (ids.containsKey(query))
+			return;
+		ids.put(query, queries.size());
+		queries.add(query);
+		if (manufacturer != null && component != null)
+			ads.add(new Ad(new Product(manufacturer, component)));
+		else if (manufacturer == null && component == null)
+			ads.add(genericAd);
+		else
+			ads.add(null);
+	}
+
+	private String intern(String name, boolean add) {
+		if (name == null)
+			return null;
+		String canonical = names.get(name);
+		if (canonical == null && add) {
+			names.put(name, name);
+			canonical = name;
+		}
+		return canonical;
+	}
+
+	/**
+	 * @param name a manufacturer or component name
+	 * @return the canonical instance of the name, or the name itself if it is not part of the catalog
+	 */
+	public String intern(String name) {
+		String canonical = intern(name, false);
+		return canonical != null ? canonical : name;
+	}
+
+	/**
+	 * @return number of queries in the query space
+	 */
+	public int size() {
+		return queries.size();
+	}
+
+	/**
+	 * @param id
+	 * @return the canonical query with an id
+	 */
+	public Query query(int id) {
+		return queries.get(id);
+	}
+
+	/**
+	 * @param id
+	 * @return the canonical ad of a query: the ad of its product for an F2 query, the
+	 * generic ad for the F0 query, or null for an F1 query, whose ad depends on the rankings
+	 */
+	public Ad ad(int id) {
+		return ads.get(id);
+	}
+
+	/**
+	 * @return the canonical generic ad
+	 */
+	public Ad getGenericAd() {
+		return genericAd;
+	}
+}
@@ -0,0 +1,298 @@
+package edu.udel.agents.fool;
+
+import edu.umich.eecs.tac.props.Ad;
+import edu.umich.eecs.tac.props.Product;
+import edu.umich.eecs.tac.props.QueryReport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Positions and ads of the competitors over the last days, taken from the per-advertiser
+ * part of the query reports. Competitors are given int ids as they appear, and every
+ * column is a flat array addressed by competitor, day and query slot. The days form a
+ * ring of {@link #getHistoryDays()} entries shared by all queries.
+ * <p>
+ * Rolling summaries are kept for each competitor and query: the days it was shown, the
+ * sum of its positions and the days it held the top slot, along with the days each
+ * competitor showed the ad of each product. They are updated when a day is added and
+ * when the oldest day leaves the ring, so reading them never scans the history. Sums of
+ * positions are kept as integers in units of {@link #POSITION_UNIT}, in which every stored
+ * position from 1 up is exact, so removing a day takes off exactly what adding it put in
+ * and the sums never drift over a game.
+ * <p>
+ * An ad is stored as the slot of the F2 query of its product, {@link #GENERIC} for a
+ * generic ad, or {@link #NO_AD} when the competitor was not shown.
+ */
+public class CompetitorIndex {
+
+	//Ad codes that are not product slots
+	public static final int NO_AD = -1;
+	public static final int GENERIC = -2;
+
+	//Resolution of the position sums, the spacing of the floats between 1 and 2
+	static final double POSITION_UNIT = 1.0 / (1 << 23);
+
+	//Number of days kept
+	private final int historyDays;
+
+	//Id of each competitor name, and name of each id
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+	private final List<String> names = new ArrayList<String>();
+
+	private QueryIndex queryIndex = new QueryIndex();
+	private int slots = 0;
+
+	//Number of days recorded, at most historyDays, and ring entry of the latest day
+	private int days = 0;
+	private int latest = -1;
+
+	//Position and ad of each competitor, day and query: ((competitor * historyDays) + day) * slots + slot
+	private float[] position = new float[0];
+	private int[] ad = new int[0];
+
+	//Rolling summaries of each competitor and query: competitor * slots + slot
+	private int[] shownDays = new int[0];
+	private long[] positionSum = new long[0];
+	private int[] topDays = new int[0];
+
+	//Days each competitor showed the ad of each product: competitor * slots + product slot
+	private int[] productDays = new int[0];
+
+	/**
+	 * @param historyDays number of days kept
+	 */
+	public CompetitorIndex(int historyDays) {
+		this.historyDays = historyDays;
+	}
+
+	/**
+	 * Prepares for a query space. Nothing has been recorded.
+	 * @param queryIndex structure of the query space
+	 */
+	public void setup(QueryIndex queryIndex) {
+		this.queryIndex = queryIndex;
+		this.slots = queryIndex.getAllSlots().length;
+		ids.clear();
+		names.clear();
+		days = 0;
+		latest = -1;
+		position = new float[0];
+		ad = new int[0];
+		shownDays = new int[0];
+		positionSum = new long[0];
+		topDays = new int[0];
+		productDays = new int[0];
+	}
+
+	public int getHistoryDays() {
+		return historyDays;
+	}
+
+	/**
+	 * @return number of days recorded, at most {@link #getHistoryDays()}
+	 */
+	public int days() {
+		return days;
+	}
+
+	/**
+	 * @return number of competitors seen so far
+	 */
+	public int competitors() {
+		return names.size();
+	}
+
+	/**
+	 * @param name
+	 * @return id of a competitor, or -1 if it has not been seen
+	 */
+	public int competitorId(String name) {
+		Integer id = ids.get(name);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * @param competitor
+	 * @return name of a competitor
+	 */
+	public String competitorName(int competitor) {
+		return names.get(competitor);
+	}
+
+	/**
+	 * Adds the competitor entries of a day's query report. The oldest day leaves the
+	 * history when it is full.
+	 * @param queryReport
+	 * @param reportEntry entry of each query slot in the report, -1 if it is not in the report
+	 * @param self name of the agent, whose own entries are not recorded, or null
+	 */
+	public void record(QueryReport queryReport, int[] reportEntry, String self) {
+		latest = (latest + 1) % historyDays;
+		if (days == historyDays)
+			evict(latest);
+		else
+			days++;
+		for (int c = 0; c < names.size(); c++)
+			clear(c, latest);
+
+		for (int slot = 0; slot < slots; slot++) {
+			int entry = reportEntry[slot];
+			if (entry < 0)
+				continue;
+			for (String advertiser : queryReport.advertisers(entry)) {
+				if (advertiser.equals(self))
+					continue;
+				double shown = queryReport.getPosition(entry, advertiser);
+				if (Double.isNaN(shown))
+					continue;
+				add(competitor(advertiser), slot, shown, encode(queryReport.getAd(entry, advertiser)));
+			}
+		}
+	}
+
+	/**
+	 * Returns the id of a competitor, making room for it if it is new.
+	 */
+	private int competitor(String name) {
+		Integer id = ids.get(name);
+		if (id != null)
+			return id;
+		id = names.size();
+		ids.put(name, id);
+		names.add(name);
+
+		int competitors = names.size();
+		position = Arrays.copyOf(position, competitors * historyDays * slots);
+		ad = Arrays.copyOf(ad, competitors * historyDays * slots);
+		shownDays = Arrays.copyOf(shownDays, competitors * slots);
+		positionSum = Arrays.copyOf(positionSum, competitors * slots);
+		topDays = Arrays.copyOf(topDays, competitors * slots);
+		productDays = Arrays.copyOf(productDays, competitors * slots);
+		for (int day = 0; day < historyDays; day++)
+			clear(id, day);
+		return id;
+	}
+
+	private void clear(int competitor, int day) {
+		int base = (competitor * historyDays + day) * slots;
+		Arrays.fill(position, base, base + slots, Float.NaN);
+		Arrays.fill(ad, base, base + slots, NO_AD);
+	}
+
+	private void add(int competitor, int slot, double shown, int adCode) {
+		int entry = (competitor * historyDays + latest) * slots + slot;
+		position[entry] = (float) shown;
+		ad[entry] = adCode;
+		int summary = competitor * slots + slot;
+		shownDays[summary]++;
+		positionSum[summary] += units(position[entry]);
+		if (position[entry] <= 1)
+			topDays[summary]++;
+		if (adCode >= 0)
+			productDays[competitor * slots + adCode]++;
+	}
+
+	/**
+	 * Removes the contribution of a day from the summaries.
+	 */
+	private void evict(int day) {
+		for (int competitor = 0; competitor < names.size(); competitor++) {
+			int base = (competitor * historyDays + day) * slots;
+			for (int slot = 0; slot < slots; slot++) {
+				float old = position[base + slot];
+				if (Float.isNaN(old))
+					continue;
+				int summary = competitor * slots + slot;
+				shownDays[summary]--;
+				positionSum[summary] -= units(old);
+				if (old <= 1)
+					topDays[summary]--;
+				if (ad[base + slot] >= 0)
+					productDays[competitor * slots + ad[base + slot]]--;
+			}
+		}
+	}
+
+	private static long units(float position) {
+		return Math.round(position / POSITION_UNIT);
+	}
+
+	private int encode(Ad shown) {
+		if (shown == null)
+			return NO_AD;
+		Product product = shown.getProduct();
+		if (shown.isGeneric() || product == null)
+			return GENERIC;
+		int slot = queryIndex.slot(product.getManufacturer(), product.getComponent());
+		return slot >= 0 && queryIndex.typeOf(slot) == 2 ? slot : GENERIC;
+	}
+
+	/**
+	 * @param competitor
+	 * @param slot
+	 * @param daysAgo 0 for the latest day, up to {@link #days()} - 1
+	 * @return position of the competitor for the query on a day, NaN if it was not shown
+	 */
+	public double position(int competitor, int slot, int daysAgo) {
+		return position[entry(competitor, slot, daysAgo)];
+	}
+
+	/**
+	 * @param competitor
+	 * @param slot
+	 * @param daysAgo 0 for the latest day, up to {@link #days()} - 1
+	 * @return ad shown by the competitor for the query on a day: a product slot,
+	 * {@link #GENERIC} or {@link #NO_AD}
+	 */
+	public int ad(int competitor, int slot, int daysAgo) {
+		return ad[entry(competitor, slot, daysAgo)];
+	}
+
+	private int entry(int competitor, int slot, int daysAgo) {
+		int day = (latest - daysAgo + historyDays) % historyDays;
+		return (competitor * historyDays + day) * slots + slot;
+	}
+
+	/**
+	 * @param competitor
+	 * @param slot
+	 * @return number of days the competitor was shown for the query
+	 */
+	public int shownDays(int competitor, int slot) {
+		return shownDays[competitor * slots + slot];
+	}
+
+	/**
+	 * @param competitor
+	 * @param slot
+	 * @return average position of the competitor for the query over the days it was
+	 * shown, NaN if it was not shown
+	 */
+	public double averagePosition(int competitor, int slot) {
+		int summary = competitor * slots + slot;
+		return shownDays[summary] > 0 ? positionSum[summary] * POSITION_UNIT / shownDays[summary] : Double.NaN;
+	}
+
+	/**
+	 * @param competitor
+	 * @param slot
+	 * @return share of the recorded days the competitor held the top slot of the query
+	 */
+	public double topSlotShare(int competitor, int slot) {
+		return days > 0 ? (double) topDays[competitor * slots + slot] / days : 0;
+	}
+
+	/**
+	 * This returns how often a competitor advertises a product
+	 * @param competitor
+	 * @param product slot of the F2 query of the product
+	 * @return number of query days the competitor showed the ad of the product
+	 */
+	public int productDays(int competitor, int product) {
+		return productDays[competitor * slots + product];
+	}
+}
@@ -0,0 +1,283 @@
+package edu.udel.agents.fool;
+
+import edu.umich.eecs.tac.props.Query;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records the decisions of the agent without slowing down the bid computation. Events
+ * are typed records stored in preallocated columns of a ring buffer, so recording one
+ * only copies a few fields. A background thread drains the buffer, formats the events
+ * and writes them out. If the writer falls behind, new events are dropped rather than
+ * blocking the agent.
+ * <p>
+ * Events are recorded from a single thread, the one delivering the agent's messages.
+ * The level decides which events are kept. At {@link Level#OFF} no thread is started and
+ * recording an event only costs a comparison.
+ */
+public class DecisionLog {
+
+	/**
+	 * Which events are recorded.
+	 */
+	public enum Level {
+		//Nothing is recorded
+		OFF,
+		//Daily events: simulation day and capacity
+		DAY,
+		//Daily events plus the spike and bid decisions of every query
+		QUERY
+	}
+
+	/**
+	 * How the bid of a query was decided.
+	 */
+	public enum Mode {
+		INITIAL("Initial"), SPIKE("Spike"), REGULAR("Regular");
+
+		private final String label;
+
+		Mode(String label) {
+			this.label = label;
+		}
+	}
+
+	//Kinds of events
+	private static final int DAY = 0;
+	private static final int CAPACITY = 1;
+	private static final int SPIKE = 2;
+	private static final int BID = 3;
+
+	//Time the writer waits when there is nothing to write
+	private static final long IDLE_NANOS = 1000000L;
+
+	private final Level level;
+
+	//Event columns
+	private final int mask;
+	private final int[] kind;
+	private final int[] day;
+	private final Query[] query;
+	private final Mode[] mode;
+	private final double[] first;
+	private final double[] second;
+	private final double[] third;
+
+	//Number of events published by the agent and written by the writer
+	private volatile long published = 0;
+	private volatile long written = 0;
+
+	//Number of events lost because the buffer was full
+	private long dropped = 0;
+
+	private volatile boolean running = false;
+	private Thread writerThread;
+	private Writer out;
+	private boolean closeOut;
+
+	/**
+	 * @param capacity number of events the buffer holds, rounded up to a power of two
+	 * @param level which events are recorded
+	 */
+	public DecisionLog(int capacity, Level level) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.level = level;
+		this.mask = size - 1;
+		this.kind = new int[size];
+		this.day = new int[size];
+		this.query = new Query[size];
+		this.mode = new Mode[size];
+		this.first = new double[size];
+		this.second = new double[size];
+		this.third = new double[size];
+	}
+
+	/**
+	 * @param level
+	 * @return true if events of this level are recorded
+	 */
+	public boolean isEnabled(Level level) {
+		return level != Level.OFF && this.level.compareTo(level) >= 0;
+	}
+
+	/**
+	 * Starts writing the events to a file, or to the standard output when no file is given.
+	 * Nothing is started when the log is off.
+	 * @param file path of the log file, or null
+	 * @throws IOException if the file cannot be opened
+	 */
+	public void start(String file) throws IOException {
+		if (level == Level.OFF || running)
+			return;
+		if (file != null) {
+			out = new BufferedWriter(new FileWriter(file, true));
+			closeOut = true;
+		} else {
+			out = new BufferedWriter(new OutputStreamWriter(System.out));
+			closeOut = false;
+		}
+
+		running = true;
+		writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drainLoop();
+			}
+		}, "FoolAgent decision log");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Writes the remaining events and stops the writer.
+	 */
+	public void close() {
+		if (!running)
+			return;
+		running = false;
+		LockSupport.unpark(writerThread);
+		try {
+			writerThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		writerThread = null;
+	}
+
+	/**
+	 * @return number of events lost because the writer fell behind
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Records the start of the decisions of a simulation day.
+	 * @param simulationDay
+	 */
+	public void day(int simulationDay) {
+		if (isEnabled(Level.DAY))
+			record(DAY, simulationDay, null, null, 0, 0, 0);
+	}
+
+	/**
+	 * Records the capacity modifier of a day.
+	 * @param simulationDay
+	 * @param saleRate conversions in the distribution window over the capacity
+	 * @param modifier resulting capacity modifier
+	 */
+	public void capacity(int simulationDay, double saleRate, double modifier) {
+		if (isEnabled(Level.DAY))
+			record(CAPACITY, simulationDay, null, null, saleRate, modifier, 0);
+	}
+
+	/**
+	 * Records the spike decision of a query.
+	 * @param simulationDay
+	 * @param query
+	 * @param baseline regular impression level
+	 * @param peak elevated impression level
+	 * @param spike whether a spike was detected
+	 */
+	public void spike(int simulationDay, Query query, double baseline, double peak, boolean spike) {
+		if (isEnabled(Level.QUERY))
+			record(SPIKE, simulationDay, query, null, baseline, peak, spike ? 1 : 0);
+	}
+
+	/**
+	 * Records the bid decision of a query.
+	 * @param simulationDay
+	 * @param query
+	 * @param mode how the bid was decided
+	 * @param baseBid
+	 * @param maxBid
+	 * @param bid
+	 */
+	public void bid(int simulationDay, Query query, Mode mode, double baseBid, double maxBid, double bid) {
+		if (isEnabled(Level.QUERY))
+			record(BID, simulationDay, query, mode, baseBid, maxBid, bid);
+	}
+
+	private void record(int eventKind, int simulationDay, Query eventQuery, Mode eventMode,
+			double a, double b, double c) {
+		long sequence = published;
+		if (!running || sequence - written > mask) {
+			dropped++;
+			return;
+		}
+		int i = (int) sequence & mask;
+		kind[i] = eventKind;
+		day[i] = simulationDay;
+		query[i] = eventQuery;
+		mode[i] = eventMode;
+		first[i] = a;
+		second[i] = b;
+		third[i] = c;
+		published = sequence + 1;
+	}
+
+	private void drainLoop() {
+		StringBuilder line = new StringBuilder(128);
+		try {
+			while (true) {
+				boolean stopping = !running;
+				long end = published;
+				long sequence = written;
+				for (; sequence < end; sequence++) {
+					int i = (int) sequence & mask;
+					line.setLength(0);
+					format(i, line);
+					query[i] = null;
+					out.write(line.toString());
+				}
+				written = end;
+
+				if (sequence == published) {
+					out.flush();
+					if (stopping)
+						break;
+					LockSupport.parkNanos(this, IDLE_NANOS);
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Decision log stopped: " + e);
+			running = false;
+		} finally {
+			try {
+				if (closeOut)
+					out.close();
+				else
+					out.flush();
+			} catch (IOException e) {
+				System.err.println("Decision log not closed: " + e);
+			}
+		}
+	}
+
+	private void format(int i, StringBuilder line) {
+		line.append(day[i]).append('\t');
+		switch (kind[i]) {
+		case DAY:
+			line.append("Day");
+			break;
+		case CAPACITY:
+			line.append("Capacity\t").append(first[i]).append('\t').append(second[i]);
+			break;
+		case SPIKE:
+			line.append("Clusters\t").append(query[i]).append('\t')
+					.append(first[i]).append('\t').append(second[i])
+					.append('\t').append(third[i] != 0);
+			break;
+		default:
+			line.append("Bid\t").append(query[i]).append('\t').append(mode[i].label).append('\t')
+					.append(first[i]).append('\t').append(second[i]).append('\t').append(third[i]);
+			break;
+		}
+		line.append('\n');
+	}
+}
@@ -0,0 +1,122 @@
+package edu.udel.agents.fool;
+
+/**
+ * Fixed-capacity ring buffer of primitive doubles. Once the buffer is full every new
+ * value overwrites the oldest one, so a daily series uses constant memory no matter how
+ * long the simulation runs. Values are addressed either from the oldest one or from
+ * the most recent one, which gives windowed views such as "the last N days" without
+ * copying.
+ */
+public class DoubleRingBuffer {
+
+	private final double[] data;
+
+	//Position of the oldest value
+	private int head = 0;
+
+	//Number of values stored
+	private int size = 0;
+
+	/**
+	 * @param capacity maximum number of values kept
+	 */
+	public DoubleRingBuffer(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		data = new double[capacity];
+	}
+
+	/**
+	 * Appends a value, evicting the oldest one when the buffer is full.
+	 * @param value
+	 */
+	public void add(double value) {
+		if (size < data.length) {
+			data[index(size)] = value;
+			size++;
+		} else {
+			data[head] = value;
+			head = index(1);
+		}
+	}
+
+	/**
+	 * This returns a stored value counted from the oldest one
+	 * @param i 0 for the oldest value, size() - 1 for the most recent one
+	 * @return
+	 */
+	public double get(int i) {
+		if (i < 0 || i >= size)
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+		return data[index(i)];
+	}
+
+	/**
+	 * This returns a stored value counted from the most recent one
+	 * @param i 0 for the most recent value, size() - 1 for the oldest one
+	 * @return
+	 */
+	public double getRecent(int i) {
+		return get(size - 1 - i);
+	}
+
+	/**
+	 * This returns a value of the window made of the last n values
+	 * @param n window length, clipped to size()
+	 * @param i 0 for the oldest value of the window
+	 * @return
+	 */
+	public double getInWindow(int n, int i) {
+		return get(size - windowSize(n) + i);
+	}
+
+	/**
+	 * @param n requested window length
+	 * @return number of values actually available in the window of the last n values
+	 */
+	public int windowSize(int n) {
+		return Math.max(0, Math.min(n, size));
+	}
+
+	/**
+	 * Copies the last n values, oldest first, into an array.
+	 * @param n window length, clipped to size()
+	 * @param dest array receiving the values from index 0
+	 * @return number of values copied
+	 */
+	public int copyWindow(int n, double[] dest) {
+		int count = windowSize(n);
+		int first = index(size - count);
+		int tail = Math.min(count, data.length - first);
+		System.arraycopy(data, first, dest, 0, tail);
+		System.arraycopy(data, 0, dest, tail, count - tail);
+		return count;
+	}
+
+	/**
+	 * @return number of values stored
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return maximum number of values kept
+	 */
+	public int capacity() {
+		return data.length;
+	}
+
+	/**
+	 * Removes all values.
+	 */
+	public void clear() {
+		head = 0;
+		size = 0;
+	}
+
+	private int index(int i) {
+		int index = head + i;
+		return index >= data.length ? index - data.length : index;
+	}
+}
@@ -0,0 +1,128 @@
+package edu.udel.agents.fool;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Streaming spike detector. Each query keeps an exponentially weighted moving average
+ * and variance of its daily impressions, updated in constant time as every query report
+ * is processed. A new value is a spike when it lies more than a number of standard
+ * deviations above the average and is also far enough above it in relative terms. The
+ * decision is made when the value is observed, so {@link #detect(int, DoubleRingBuffer)}
+ * does not look at the history and its cost does not grow with the length of the game.
+ */
+public class EwmaSpikeDetector implements SpikeDetector {
+
+	//Minimum number of points before a spike can be detected
+	private final int minPoints;
+
+	//Minimum difference between a spike and the average, relative to the average
+	private final double minDifference;
+
+	//Weight of a new value in the moving average
+	private final double smoothing;
+
+	//Minimum number of standard deviations between a spike and the average
+	private final double zScore;
+
+	//Moving average, moving variance and number of values of each query
+	private double[] mean = new double[0];
+	private double[] variance = new double[0];
+	private int[] count = new int[0];
+
+	//Last value of each query and the average it was compared with
+	private double[] last = new double[0];
+	private double[] lastMean = new double[0];
+
+	//Queries whose last value was a spike and has not been reported yet
+	private final BitSet spikes = new BitSet();
+
+	//Levels of the query examined last
+	private double baseline = 0;
+	private double peak = 0;
+
+	/**
+	 * @param minPoints minimum number of points before a spike can be detected
+	 * @param minDifference minimum difference between a spike and the average, relative to the average
+	 * @param smoothing weight of a new value in the moving average, between 0 and 1
+	 * @param zScore minimum number of standard deviations between a spike and the average
+	 */
+	public EwmaSpikeDetector(int minPoints, double minDifference, double smoothing, double zScore) {
+		if (smoothing <= 0 || smoothing > 1)
+			throw new IllegalArgumentException("smoothing must be in (0, 1]: " + smoothing);
+		this.minPoints = minPoints;
+		this.minDifference = minDifference;
+		this.smoothing = smoothing;
+		this.zScore = zScore;
+	}
+
+	@Override
+	public void setup(int queries) {
+		if (mean.length < queries) {
+			mean = new double[queries];
+			variance = new double[queries];
+			count = new int[queries];
+			last = new double[queries];
+			lastMean = new double[queries];
+		} else {
+			Arrays.fill(mean, 0);
+			Arrays.fill(variance, 0);
+			Arrays.fill(count, 0);
+			Arrays.fill(last, 0);
+			Arrays.fill(lastMean, 0);
+		}
+		spikes.clear();
+		baseline = 0;
+		peak = 0;
+	}
+
+	@Override
+	public void observe(int slot, double impressions) {
+		double average = mean[slot];
+		last[slot] = impressions;
+		lastMean[slot] = average;
+
+		if (count[slot] == 0) {
+			mean[slot] = impressions;
+			variance[slot] = 0;
+			count[slot] = 1;
+			spikes.clear(slot);
+			return;
+		}
+
+		double difference = impressions - average;
+		boolean spike = count[slot] >= minPoints
+				&& average != 0
+				&& difference > minDifference * average
+				&& difference * difference > zScore * zScore * variance[slot];
+		spikes.set(slot, spike);
+
+		double increment = smoothing * difference;
+		mean[slot] = average + increment;
+		variance[slot] = (1 - smoothing) * (variance[slot] + difference * increment);
+		count[slot]++;
+	}
+
+	/**
+	 * Reports whether the last value observed for a query was a spike. Each observed
+	 * spike is reported only once.
+	 */
+	@Override
+	public boolean detect(int slot, DoubleRingBuffer history) {
+		baseline = lastMean[slot];
+		peak = last[slot];
+		boolean spike = spikes.get(slot);
+		spikes.clear(slot);
+		return spike;
+	}
+
+	@Override
+	public double getBaseline() {
+		return baseline;
+	}
+
+	@Override
+	public double getPeak() {
+		return peak;
+	}
+}
@@ -7,16 +7,10 @@ import se.sics.tasim.props.SimulationStatus;
 import se.sics.isl.transport.Transportable;
 import edu.umich.eecs.tac.props.*;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 
-import net.sf.javaml.*;
-import net.sf.javaml.clustering.KMeans;
-import net.sf.javaml.core.Dataset;
-import net.sf.javaml.core.DefaultDataset;
-import net.sf.javaml.core.DenseInstance;
-import net.sf.javaml.core.Instance;
-import net.sf.javaml.tools.DatasetTools;
-
 //git@github.com/JXS2012/TradingAgent.git
 /**
  * This class is a skeletal implementation of a TAC/AA agent.
@@ -28,32 +22,66 @@ public class FoolAgent extends Agent {
 	
 	/** User defined constants **/
 	
-	//Percentage of total revenue to be spent on ads
-	double adRevenueRatioPercent = 0.2;
-	
-	//Percent
-	double baseBidPerProductRevenuePercent = 0.09;
+	//Tunable constants of the bidding strategy
+	AgentParameters parameters = AgentParameters.loadConfigured();
 	
 	//Current simulation day
 	int simulationDay = 0;
 	
-	//Agressive bidding initial days
-	int initialSimulationDays = 5;
+	//Minimum number of days of impressions before spikes are detected
+	int minSpikeImpressionsDays = 10;
+	
+	//Streaming spike detection on each query report instead of clustering the history
+	boolean streamingSpikeDetection = false;
+	
+	//Weight of the newest impressions in the streaming spike detection average
+	double spikeImpressionsSmoothing = 0.2;
+	
+	//Minimum number of standard deviations for a streaming spike
+	double spikeImpressionsZScore = 2.0;
+	
+	//Number of days of impressions kept for spike detection
+	int impressionHistoryDays = 64;
+	
+	//Spike detector, created for each simulation
+	SpikeDetector spikeDetector;
+	
+	//Which decisions are logged, OFF unless the decisions are studied
+	DecisionLog.Level decisionLogLevel = DecisionLog.Level.OFF;
+	
+	//File the decisions are appended to, null for the standard output
+	String decisionLogFile = null;
 	
-	//Agressive bid percent
-	double aggressiveBidPercent = 1.0;
+	//Number of decision events buffered before the log writer
+	int decisionLogCapacity = 4096;
 	
-	//Agressive bid percent
-	double spikeBidPercent = 1.1;
+	//Decision log, started for each simulation
+	DecisionLog decisionLog = new DecisionLog(2, DecisionLog.Level.OFF);
 	
-	//Maximum bid multiplicative factor
-	double maxBidFactor = 4;
+	//Percentage of the day length after which a slow day is reported
+	double dayDeadlineWarningPercent = 0.5;
 	
-	//K-Means Clustering object
-	KMeans kmeansClusterer = new KMeans(2);
+	//Percentage of the day length within which the bids of the day must be refined
+	double bidBudgetPercent = 0.8;
 	
-	//Spike interval percent
-	double minSpikeImpressionsDifference = 0.15;
+	//Reports processed on a worker thread as they arrive
+	boolean pipelinedIngestion = true;
+	
+	//Number of reports the report pipeline holds
+	int reportPipelineCapacity = 64;
+	
+	//Directory the message traces of the games are written to, null to not record them.
+	//A trace replays identically without a knowledge store and with the default parameters
+	String traceDirectory = null;
+	
+	//Message trace of the current game
+	TraceRecorder traceRecorder;
+	
+	//Store of the query statistics of past games, null to always start from the fixed priors
+	String knowledgeFile = System.getProperty("fool.knowledge");
+	
+	//Number of days of past statistics the priors of a query are worth
+	double knowledgePriorDays = 1;
 		
     /**
      * Basic simulation information. {@link StartInfo} contains
@@ -134,7 +162,14 @@ public class FoolAgent extends Agent {
      */
     protected List<QueryReport> queryReports;
     
-    private Queue<SalesReport> conversionInWindow;
+    //Total conversions of each day of the distribution window
+    private DoubleRingBuffer conversionInWindow;
+    
+    //Total conversions over the distribution window
+    private double totalConversionInWindow = 0;
+    
+    //Capacity modifier of the day, shared by all queries
+    double capacityModifier = 1;
 
     private String publisherAddress;
     /**
@@ -142,63 +177,335 @@ public class FoolAgent extends Agent {
      */
     protected Set<Query> querySpace;
     
-    Map<Query, Double> impressions = new HashMap<Query, Double>();
-    Map<Query, Double> clicks = new HashMap<Query, Double>();
-    Map<Query, Double> conversions = new HashMap<Query, Double>();
-    Map<Query, Double> values = new HashMap<Query, Double>();
+    //Canonical queries, products and ads of the retail catalog
+    CatalogRegistry catalog = new CatalogRegistry();
+    
+    //Specialties of the agent, as canonical names of the catalog
+    String manufacturerSpecialty;
+    String componentSpecialty;
+    
+    //Impressions, clicks, conversions, values, bids and spikes of each query, addressed by slot
+    QueryStateTable queryState = new QueryStateTable(impressionHistoryDays);
+    
+    //Manufacturers, components and F0, F1 and F2 relations of the query space
+    QueryIndex queryIndex = new QueryIndex();
+    
+    //Popularity ranking of the queries, rebuilt every day
+    RankIndex rankIndex = new RankIndex();
+    
+    //Ad of each query for the day
+    AdPlan adPlan = new AdPlan();
+    
+    //Bid modifier factors and bids of all queries, computed together
+    BidPolicy bidPolicy = new BidPolicy();
+    
+    //Smallest bid change sent to the publisher, smaller changes keep the previous bid
+    double bidChangeTolerance = 0.001;
+    
+    //Bid and ad last sent for each query, created for each simulation
+    BidDelta bidDelta;
+    
+    //Weight kept by the past days in the click and conversion estimates, and forgetting
+    //factor of the conversion fit
+    double modelDecay = 0.9;
+    double conversionFitForgetting = 0.95;
+    
+    //Click and conversion estimates of each query, created for each simulation
+    QueryModels queryModels;
+    
+    //Number of days of bids, positions and costs kept for each query
+    int landscapeHistoryDays = 20;
+    
+    //Regular slots of an auction until the slot info says otherwise
+    static final int DEFAULT_REGULAR_SLOTS = 5;
+    
+    //Position reached by each bid of each query, created for each simulation
+    BidLandscape bidLandscape;
+    
+    //Whether the landscapes are observed and lost queries raised by them
+    boolean landscapeBidding = true;
+    
+    //Largest factor a lost query is raised by to reach the last slot again
+    double maxLoseModifier = 1.5;
+    
+    //Number of days of revenue the daily ad budget is derived from
+    int budgetRevenueDays = 5;
+    
+    //Whether the daily ad budget is split into query and campaign spend limits, otherwise
+    //no limit is sent
+    boolean budgetAllocation = false;
+    
+    //Multiple of its allocation given as the spend limit of a query, and lowest value per
+    //cost that is given a budget
+    double spendLimitHeadroom = 2;
+    double minimumBudgetReturn = 1;
     
-    //Minimum bids for each product
-    Map<Query, Double> baseBid = new HashMap<Query, Double>();
+    //Smallest spend limit change sent to the publisher, as a share of the last limit sent
+    double spendLimitChangePercent = 0.1;
     
-    //Maximum bids for each product
-    Map<Query, Double> maxBid = new HashMap<Query, Double>();
+    //Split of the daily ad budget among the queries, created for each simulation
+    BudgetAllocator budgetAllocator;
     
-    //Spike status of each product
-    Map<Query, Boolean> spikeDetect = new HashMap<Query, Boolean>();
-    Map<Query, Boolean> spikeDetectPreviousDay = new HashMap<Query, Boolean>();
+    //Revenue of each day of the budget window, and its total
+    private DoubleRingBuffer revenueInWindow;
+    private double totalRevenueInWindow = 0;
     
-    //Impressions dataset for each product
-    Map<Query, List<Double>> impressionData = new HashMap<Query, List<Double>>();
+    //Whether the competitors of each query are recorded; nothing reads them yet
+    boolean competitorTracking = false;
     
-    Map<String, Set<Query>> queriesForComponent = new HashMap<String, Set<Query>>();
+    //Number of days of competitor positions and ads kept
+    int competitorHistoryDays = 10;
     
-    Map<String, Set<Query>> queriesForManufacturer = new HashMap<String, Set<Query>>();
+    //Positions and ads of the competitors for each query, created for each simulation
+    CompetitorIndex competitorIndex;
     
     QueryReport currQueryReport;
+    
+    //Latency of each message handler and of each step of the daily bid computation
+    MetricsRegistry metrics = new MetricsRegistry();
+    
+    //Whether the latencies are printed at the end of each simulation
+    boolean printMetrics = false;
+    final int queryReportTimer = metrics.register("QueryReport");
+    final int salesReportTimer = metrics.register("SalesReport");
+    final int simulationStatusTimer = metrics.register("SimulationStatus");
+    final int setupMessageTimer = metrics.register("setup messages");
+    final int rankingTimer = metrics.register("ranking");
+    final int baseBidsTimer = metrics.register("computeBaseBids");
+    final int spikeDetectionTimer = metrics.register("spikeDetection");
+    final int bidLimitsTimer = metrics.register("computeQueryBidLimits");
+    final int sendBidsTimer = metrics.register("sendBidAndAds");
+    final int dayTimer = metrics.register("day");
+    final int ingestionWaitTimer = metrics.register("report pipeline wait");
+    
+    //Handler of each type of message
+    private final Map<Class<?>, MessageHandler> handlers = new HashMap<Class<?>, MessageHandler>();
+    
+    //Reports processed off the transport thread, null to process them inline
+    ReportPipeline reportPipeline;
+    
+    //Time spent processing the messages of the current day
+    private long dayNanos = 0;
+    
+    //Number of days whose processing came close to the day length
+    int slowDays = 0;
+    
+    //Number of days whose refined bids were not sent because they were late
+    int lateDays = 0;
+    
+    //Number of days whose refined bids were not sent because a step failed
+    int failedDays = 0;
+    
+    //Deadline of a day with no time limit
+    static final long NO_DEADLINE = Long.MAX_VALUE;
 
 
     public FoolAgent() {
         salesReports = new LinkedList<SalesReport>();
         queryReports = new LinkedList<QueryReport>();
         querySpace = new LinkedHashSet<Query>();
-        conversionInWindow = new LinkedList<SalesReport>();
+        registerHandlers();
+    }
+
+    /**
+     * Handler of one type of message in the dispatch table of the agent.
+     */
+    abstract class MessageHandler {
+    	
+    	//Timer of the handler
+    	final int timer;
+    	
+    	//Whether the message is processed by the report pipeline
+    	final boolean pipelined;
+    	
+    	MessageHandler(int timer, boolean pipelined) {
+    		this.timer = timer;
+    		this.pipelined = pipelined;
+    	}
+    	
+    	abstract void handle(Transportable content);
+    }
+    
+    /**
+     * Fills the dispatch table of the messages the agent processes.
+     */
+    private void registerHandlers() {
+    	handlers.put(QueryReport.class, new MessageHandler(queryReportTimer, true) {
+    		@Override
+    		void handle(Transportable content) {
+    			handleQueryReport((QueryReport) content);
+    		}
+    	});
+    	handlers.put(SalesReport.class, new MessageHandler(salesReportTimer, true) {
+    		@Override
+    		void handle(Transportable content) {
+    			handleSalesReport((SalesReport) content);
+    		}
+    	});
+    	handlers.put(SimulationStatus.class, new MessageHandler(simulationStatusTimer, false) {
+    		@Override
+    		void handle(Transportable content) {
+    			handleSimulationStatus((SimulationStatus) content);
+    		}
+    	});
+    	handlers.put(PublisherInfo.class, new MessageHandler(setupMessageTimer, false) {
+    		@Override
+    		void handle(Transportable content) {
+    			handlePublisherInfo((PublisherInfo) content);
+    		}
+    	});
+    	handlers.put(SlotInfo.class, new MessageHandler(setupMessageTimer, false) {
+    		@Override
+    		void handle(Transportable content) {
+    			handleSlotInfo((SlotInfo) content);
+    		}
+    	});
+    	handlers.put(RetailCatalog.class, new MessageHandler(setupMessageTimer, false) {
+    		@Override
+    		void handle(Transportable content) {
+    			handleRetailCatalog((RetailCatalog) content);
+    		}
+    	});
+    	handlers.put(AdvertiserInfo.class, new MessageHandler(setupMessageTimer, false) {
+    		@Override
+    		void handle(Transportable content) {
+    			handleAdvertiserInfo((AdvertiserInfo) content);
+    		}
+    	});
+    	handlers.put(StartInfo.class, new MessageHandler(setupMessageTimer, false) {
+    		@Override
+    		void handle(Transportable content) {
+    			handleStartInfo((StartInfo) content);
+    		}
+    	});
+    }
+    
+    /**
+     * This returns the handler of a certain message
+     * @param content
+     * @return the handler, or null if the agent ignores the message
+     */
+    private MessageHandler handlerFor(Transportable content) {
+    	MessageHandler handler = handlers.get(content.getClass());
+    	if (handler == null) {
+    		// Subclasses of the known messages are handled like them. The table is not
+    		// modified after construction, so the report pipeline can read it too
+    		for (Map.Entry<Class<?>, MessageHandler> entry : handlers.entrySet())
+    			if (entry.getKey().isInstance(content))
+    				return entry.getValue();
+    	}
+    	return handler;
     }
 
     /**
-     * Processes the messages received the by agent from the server.
+     * Processes the messages received the by agent from the server. Reports are handed
+     * to the report pipeline when it runs. Any other message waits until the reports
+     * before it have been processed, so messages always take effect in the order they
+     * were received.
      *
      * @param message the message
      */
     protected void messageReceived(Message message) {
         Transportable content = message.getContent();
-
-        if (content instanceof QueryReport) {
-            handleQueryReport((QueryReport) content);
-        } else if (content instanceof SalesReport) {
-            handleSalesReport((SalesReport) content);
-        } else if (content instanceof SimulationStatus) {
-            handleSimulationStatus((SimulationStatus) content);
-        } else if (content instanceof PublisherInfo) {
-            handlePublisherInfo((PublisherInfo) content);
-        } else if (content instanceof SlotInfo) {
-            handleSlotInfo((SlotInfo) content);
-        } else if (content instanceof RetailCatalog) {
-            handleRetailCatalog((RetailCatalog) content);
-        } else if (content instanceof AdvertiserInfo) {
-            handleAdvertiserInfo((AdvertiserInfo) content);
-        } else if (content instanceof StartInfo) {
-            handleStartInfo((StartInfo) content);
+        if (traceRecorder != null)
+        	recordTrace(MessageTrace.RECEIVED, content);
+        long start = System.nanoTime();
+        MessageHandler handler = handlerFor(content);
+        
+        if (handler != null && handler.pipelined && reportPipeline != null) {
+        	reportPipeline.submit(content);
+        	dayNanos += System.nanoTime() - start;
+        	return;
         }
+        if (reportPipeline != null) {
+        	reportPipeline.await();
+        	start = lap(ingestionWaitTimer, start);
+        }
+        
+        int timer = handler != null ? handler.timer : setupMessageTimer;
+        try {
+            if (handler != null)
+            	handler.handle(content);
+        } finally {
+            recordMessage(timer, System.nanoTime() - start, timer == simulationStatusTimer);
+        }
+    }
+    
+    /**
+     * Processes a message on the report pipeline. A failure is reported and the following
+     * messages are processed.
+     * @param content
+     */
+    private void processReport(Transportable content) {
+    	MessageHandler handler = handlerFor(content);
+    	long start = System.nanoTime();
+    	try {
+    		handler.handle(content);
+    	} catch (RuntimeException e) {
+    		reportFailed(content, e);
+    	} finally {
+    		metrics.record(handler.timer, System.nanoTime() - start);
+    	}
+    }
+    
+    /**
+     * Called on the report pipeline when a report could not be processed.
+     * @param content
+     * @param e
+     */
+    protected void reportFailed(Transportable content, RuntimeException e) {
+    	System.err.println("Could not process " + content.getClass().getSimpleName() + ": " + e);
+    }
+    
+    /**
+     * Records the latency of a message handler. The simulation status is the last message
+     * of a day, so it closes the day.
+     * @param timer
+     * @param nanos
+     * @param endOfDay
+     */
+    private void recordMessage(int timer, long nanos, boolean endOfDay) {
+    	metrics.record(timer, nanos);
+    	dayNanos += nanos;
+    	if (endOfDay) {
+    		metrics.record(dayTimer, dayNanos);
+    		checkDayDeadline(dayNanos);
+    		dayNanos = 0;
+    	}
+    }
+    
+    /**
+     * Reports a day whose processing took a large part of the day length.
+     * @param nanos time spent on the messages of the day
+     */
+    private void checkDayDeadline(long nanos) {
+    	if (startInfo == null)
+    		return;
+    	double dayLength = startInfo.getSecondsPerDay() * 1e9;
+    	if (nanos > dayDeadlineWarningPercent * dayLength) {
+    		slowDays++;
+    		System.err.format("Day %d processing took %.1f ms, %.0f%% of the day length%n",
+    				simulationDay, nanos / 1e6, 100 * nanos / dayLength);
+    	}
+    }
+    
+    /**
+     * @return the latencies of the message handlers and bid computation steps
+     */
+    public MetricsSnapshot getMetrics() {
+    	return metrics.snapshot();
+    }
+    
+    /**
+     * Records the time elapsed since a start time.
+     * @param timer
+     * @param start
+     * @return the current time, to start the next measure
+     */
+    private long lap(int timer, long start) {
+    	long now = System.nanoTime();
+    	metrics.record(timer, now - start);
+    	return now;
     }
 
     /**
@@ -206,10 +513,15 @@ public class FoolAgent extends Agent {
      */
     protected void sendBidAndAds() {
         BidBundle bidBundle = new BidBundle();
+        computeBids();
+        if (budgetAllocation)
+        	allocateBudget();
         
         //String publisherAddress = advertiserInfo.getPublisherId();
 
-        for(Query query : querySpace) {
+        for(int slot = 0; slot < queryState.size(); slot++) {
+        	Query query = queryState.query(slot);
+        	
             // The publisher will interpret a NaN bid as
             // a request to persist the prior day's bid
             //double bid = Double.NaN;
@@ -217,204 +529,228 @@ public class FoolAgent extends Agent {
         	
             // The publisher will interpret a null ad as
             // a request to persist the prior day's ad
-            Ad ad = getAd(query);
+            Ad ad = getAd(slot);
             // ad = [ calculated optimal ad ]
         	//Product product = ad.getProduct();
         	
-        	double bid = computeBid(query);	
+        	double bid = bidPolicy.bid(slot);	
         	
         	
             // The publisher will interpret a NaN spend limit as
             // a request to persist the prior day's spend limit
-            double spendLimit = Double.NaN;
-            // spendLimit = [ calculated optimal spend limit ]
+            double spendLimit = budgetAllocator.getLimit(slot);
 
 
-            // Set the daily updates to the ad campaigns for this query class
-            bidBundle.addQuery(query,  bid, ad);
-            bidBundle.setDailyLimit(query, spendLimit);
+            // Set the daily updates to the ad campaigns for this query class,
+            // only if they changed since they were last sent
+            bidDelta.add(bidBundle, slot, query, bid, ad, spendLimit);
         }
 
         // The publisher will interpret a NaN campaign spend limit as
         // a request to persist the prior day's campaign spend limit
-        double campaignSpendLimit = Double.NaN;
-        // campaignSpendLimit = [ calculated optimal campaign spend limit ]
+        double campaignSpendLimit = budgetAllocator.getCampaignLimit();
 
 
         // Set the daily updates to the campaign spend limit
         bidBundle.setCampaignDailySpendLimit(campaignSpendLimit);
 
-        // Send the bid bundle to the publisher
+        sendBidBundle(bidBundle);
+    }
+    
+    /**
+     * Sends a bid bundle to the publisher.
+     * @param bidBundle
+     */
+    private void sendBidBundle(BidBundle bidBundle) {
         if (publisherAddress != null) {
         	//System.out.println(publisherAddress);
+        	if (traceRecorder != null)
+        		recordTrace(MessageTrace.SENT, bidBundle);
             sendMessage(publisherAddress, bidBundle);
+        } else {
+            // Nothing reached the publisher
+            bidDelta.reset();
         }
     }
     
     /**
-     * This computes the bid value
-     * @param query
-     * @return bid value
-     */    
-    private double computeBid(Query query)	{
-
-    	double bidBase = baseBid.get(query);
-    	double bid = 0;
-		Ad ad = getAd(query);
-		Product product;
-		if (ad.getProduct() != null)
-			product = ad.getProduct();
-		else
-			product = new Product(null, null);
-
-    	if (simulationDay <= initialSimulationDays)	{
-    		//System.out.println("Initial simulation day");
-    		bid = Math.max(bidBase , bidBase * aggressiveBidPercent * BidModifier(query));
-    		System.out.println("Curr Product: "+product.getManufacturer()+"\t"+
-    				product.getComponent()+"\t"+
-    				"Initial"+"\t"+
-    				baseBid.get(query)+"\t"+
-    				maxBid.get(query)+"\t"+
-    				bid);
-    		
-    	} else if (spikeDetect.get(query)) {
-    		bid = Math.max(bidBase , bidBase * spikeBidPercent * BidModifier(query));
-    		
-    		System.out.println("Curr Product: "+product.getManufacturer()+"\t"+
-    				product.getComponent()+"\t"+
-    				"Spike"+"\t"+
-    				baseBid.get(query)+"\t"+
-    				maxBid.get(query)+"\t"+
-    				bid);
-    	} else {
-    		//System.out.println("Regular simulation day");
-    		bid = Math.min(maxBid.get(query), bidBase * BidModifier(query));
-    		
-    		System.out.println("Curr Product: "+product.getManufacturer()+"\t"+
-    				product.getComponent()+"\t"+
-    				"Regular"+"\t"+
-    				baseBid.get(query)+"\t"+
-    				maxBid.get(query)+"\t"+
-    				bid);
-    	}
+     * This computes the bid of every query. The day's factors are set in columns, then
+     * the bid policy combines them with the base and maximum bids of all queries at once.
+     */
+    private void computeBids()	{
+    	bidPolicy.rankFactors(rankIndex.getRanksInQuerySpace(), parameters.getRankLambda());
+    	if (landscapeBidding)
+    		for (int slot = 0; slot < bidPolicy.size(); slot++)
+    			bidPolicy.loseFactor[slot] = getLoseModifier(slot);
+    	bidPolicy.selectModes(simulationDay <= parameters.getInitialSimulationDays(), queryState.spikeDetect);
+    	bidPolicy.evaluate(queryState.baseBid, queryState.maxBid, capacityModifier);
 
+    	if (decisionLog.isEnabled(DecisionLog.Level.QUERY))
+    		for (int slot = 0; slot < bidPolicy.size(); slot++)
+    			decisionLog.bid(simulationDay, queryState.query(slot), bidPolicy.mode(slot),
+    					queryState.baseBid[slot], queryState.maxBid[slot], bidPolicy.bid(slot));
+    }
+    
+    /**
+     * This splits the daily ad budget among the queries. A query is expected to bring and
+     * cost what it did in the last query report, its clicks being valued by the click and
+     * conversion models. A query that gets no budget is still limited to its base bid,
+     * about one click a day, so that its position and clicks keep being observed.
+     */
+    private void allocateBudget() {
+    	for (int slot = 0; slot < budgetAllocator.size(); slot++) {
+    		int entry = queryState.reportEntry[slot];
+    		if (entry < 0) {
+    			budgetAllocator.value[slot] = 0;
+    			budgetAllocator.cost[slot] = 0;
+    		} else {
+    			budgetAllocator.value[slot] = currQueryReport.getClicks(entry) * queryModels.expectedValuePerClick(slot);
+    			budgetAllocator.cost[slot] = currQueryReport.getCost(entry);
+    		}
+    	}
+    	budgetAllocator.allocate(dailyBudget(), queryState.baseBid);
+    }
+    
+    /**
+     * @return the daily ad budget, a share of the recent daily revenue, or NaN until
+     * there has been revenue
+     */
+    private double dailyBudget() {
+    	if (revenueInWindow.size() == 0 || totalRevenueInWindow <= 0)
+    		return Double.NaN;
+    	return parameters.getAdRevenueRatioPercent() * totalRevenueInWindow / revenueInWindow.size();
+    }
+    
+    /**
+     * Sets the bid rules and the factors that hold for the whole game: the specialty and
+     * type factors of every query. This is done when the catalog or the specialties arrive.
+     */
+    private void setupBidPolicy() {
+    	bidPolicy.setRule(DecisionLog.Mode.INITIAL, new BidPolicy.Floored(parameters.getAggressiveBidPercent()));
+    	bidPolicy.setRule(DecisionLog.Mode.SPIKE, new BidPolicy.Floored(parameters.getSpikeBidPercent()));
+    	bidPolicy.setRule(DecisionLog.Mode.REGULAR, BidPolicy.CAPPED);
+    	bidPolicy.setup(queryState.size());
+    	for (int slot = 0; slot < queryState.size(); slot++) {
+    		bidPolicy.specialtyFactor[slot] = getSpecialModifier(queryState.query(slot));
+    		bidPolicy.typeFactor[slot] = getTypeModifier(queryIndex.typeOf(slot));
+    	}
+    }
 
-    	return(bid);
+    /**
+     * This returns the Ad planned for a certain query today
+     * @param slot
+     * @return
+     */
+    private Ad getAd(int slot) {
+    	if (!adPlan.isValid())
+    		planAds();
+    	return adPlan.get(slot);
+    }
+    
+    /**
+     * Chooses the Ad of every query. This is done once per day, after the reports
+     * have been processed.
+     */
+    private void planAds() {
+    	for (int slot = 0; slot < queryState.size(); slot++)
+    		adPlan.set(slot, chooseAd(slot));
+    	adPlan.validate();
     }
 
     /**
-     * This constructs a proper Ad for a certain query
-     * @param query
+     * This chooses the Ad of a certain query among the canonical ads of the catalog
+     * @param slot
      * @return
      */
-    private Ad getAd(Query query) {
+    private Ad chooseAd(int slot) {
 		// TODO make this more suitable for F0 types
-    	if (getType(query) == 2) {
-    		//Trivial for F2
-    		Product product = new Product(query.getManufacturer(),query.getComponent());
-    		Ad ad = new Ad(product);
-    		return ad;
-    	} else if (getType(query) == 1) {
-    		//Little complex for F1
-    		Product product;
-    		if (query.getManufacturer() != null) {
+    	if (queryIndex.typeOf(slot) == 1) {
+    		//Little complex for F1: the product of the best F2 query
+    		if (queryIndex.manufacturerOf(slot) >= 0)
     			//F1 manufacturer
-    			String component = rankComponent(query.getManufacturer());
-    			product = new Product(query.getManufacturer(),component);
-    		} else {
-    			//F1 product
-    			String manufacturer = rankManufacturer(query.getComponent());
-    			product = new Product(manufacturer,query.getComponent()); 			
-    		}
-    		Ad ad = new Ad(product);
-    		return ad;
-    	} else {
-    		//Most complex for F0
-    		Product product;
-    		product = new Product(advertiserInfo.getManufacturerSpecialty(),advertiserInfo.getComponentSpecialty());
-    		product = new Product(null, null);
-    		Ad ad = new Ad();
-    		return ad;
+    			return queryState.queryAd[rankComponent(queryIndex.manufacturerOf(slot))];
+    		//F1 product
+    		return queryState.queryAd[rankManufacturer(queryIndex.componentOf(slot))];
     	}
+    	//Trivial for F2, its product, and generic for F0
+    	return queryState.queryAd[slot];
 	}
     
-    private String rankManufacturer(String component) {
-    	Set<Query> queryForComponent = queriesForComponent.get(component);
-    	HashMap<Query, Double> scoreForQueries = new HashMap<Query, Double>();
-    	for (Query query : queryForComponent) {
-    		double score = getRankModifier(rankQuery(query,queryForComponent)) * getSpecialModifier(query);
-    		scoreForQueries.put(query, score);
+    /**
+     * This returns the best scoring F2 query for a component
+     * @param component component id
+     * @return the slot of the query
+     */
+    private int rankManufacturer(int component) {
+    	int[] children = queryIndex.getComponentChildren();
+    	int end = queryIndex.getComponentOffsets()[component + 1];
+    	int best = -1;
+    	double bestScore = Double.NEGATIVE_INFINITY;
+    	for (int i = queryIndex.getComponentOffsets()[component]; i < end; i++) {
+    		int slot = children[i];
+    		double score = getRankModifier(rankIndex.rankInComponent(slot)) * bidPolicy.specialtyFactor[slot];
+    		if (score > bestScore) {
+    			best = slot;
+    			bestScore = score;
+    		}
     	}
-    	
-        ValueComparator vc = new ValueComparator(scoreForQueries);
-        TreeMap<Query, Double> sorted = new TreeMap<Query, Double>(vc);
-        sorted.putAll(scoreForQueries);
-		return sorted.lastKey().getManufacturer();
+		return best;
 	}
 
-	private String rankComponent(String manufacturer) {
-    	Set<Query> queryForManufacturer = queriesForManufacturer.get(manufacturer);
-    	HashMap<Query, Double> scoreForQueries = new HashMap<Query, Double>();
-    	for (Query query : queryForManufacturer) {
-    		double score = getRankModifier(rankQuery(query,queryForManufacturer)) * getSpecialModifier(query);
-    		scoreForQueries.put(query, score);
+    /**
+     * This returns the best scoring F2 query for a manufacturer
+     * @param manufacturer manufacturer id
+     * @return the slot of the query
+     */
+	private int rankComponent(int manufacturer) {
+    	int[] children = queryIndex.getManufacturerChildren();
+    	int end = queryIndex.getManufacturerOffsets()[manufacturer + 1];
+    	int best = -1;
+    	double bestScore = Double.NEGATIVE_INFINITY;
+    	for (int i = queryIndex.getManufacturerOffsets()[manufacturer]; i < end; i++) {
+    		int slot = children[i];
+    		double score = getRankModifier(rankIndex.rankInManufacturer(slot)) * bidPolicy.specialtyFactor[slot];
+    		if (score > bestScore) {
+    			best = slot;
+    			bestScore = score;
+    		}
     	}
-    	
-        ValueComparator vc = new ValueComparator(scoreForQueries);
-        TreeMap<Query, Double> sorted = new TreeMap<Query, Double>(vc);
-        sorted.putAll(scoreForQueries);
-		return sorted.lastKey().getComponent();
+		return best;
 	}
 
-	/**
-     * This computes the weight for a certain query, the larger the weight is, the more money goes to the bidding for this query
-     * @param query
-     * @return
-     */
-    private double BidModifier(Query query) {
-    	double rankModifier = getRankModifier(rankQuery(query, querySpace));
-    	double specialModifier = getSpecialModifier(query);
-    	double typeModifier = getTypeModifier(getType(query));
-    	double loseModifier = getLoseModifier(query);
-    	double capacityModifier = getCapacityModifier();
-    	return rankModifier*specialModifier*typeModifier*loseModifier*capacityModifier;
-    }
-
     /**
-     * If we over sale, we reduce bid
+     * If we over sale, we reduce bid. This is computed once per day from the conversions
+     * over the distribution window.
      * @return
      */
-    private double getCapacityModifier() {
-		// TODO Auto-generated method stub
+    private double computeCapacityModifier() {
     	int capacity = advertiserInfo.getDistributionCapacity();
     	
-    	double totalConversion = 0;
-    	for (SalesReport s : conversionInWindow)
-    	{
-    		double dailyConversion = 0;
-    		for (Query q : querySpace)
-    			dailyConversion = dailyConversion + s.getConversions(q);
-    		totalConversion = totalConversion + dailyConversion;
-    	}
-    	
-    	double saleRate = totalConversion / capacity;
-    	System.out.format("Capacity rate %f", saleRate);
-    	return Math.min(1,0.9*Math.exp(1 - saleRate));
+    	double saleRate = totalConversionInWindow / capacity;
+    	double modifier = Math.min(1,0.9*Math.exp(1 - saleRate));
+    	decisionLog.capacity(simulationDay, saleRate, modifier);
+    	return modifier;
 	}
 
 	/**
-     * This computes the modifier for the queries that we lose. This is a special case because we no longer no the impression of the query
-     * @param query
+     * This computes the modifier for the queries that we lose. This is a special case because we no longer no the impression of the query.
+     * A lost query is raised to the cheapest bid that reached the last slot according to its
+     * bid landscape, by at most maxLoseModifier.
+     * @param slot
      * @return
      */
-    private double getLoseModifier(Query query) {
-		// TODO Auto-generated method stub
-    	double position = currQueryReport.getPosition(query, advertiserInfo.getAdvertiserId());
+    private double getLoseModifier(int slot) {
+    	int entry = queryState.reportEntry[slot];
+    	double position = entry < 0 ? Double.NaN : currQueryReport.getPosition(entry);
+    	double reportedBid = bidDelta.getReportedBid(slot);
     	//System.out.format("for query %s %s agent %s at position %f\n", query.getManufacturer(), query.getComponent(), advertiserInfo.getAdvertiserId(), position);
-    	if (Double.isNaN(position))
+    	if (entry >= 0 && Double.isNaN(position) && reportedBid > 0)
     	{
     		//System.out.format("for query %s %s agent %s get buffed\n", query.getManufacturer(), query.getComponent(), advertiserInfo.getAdvertiserId());
-    		return 1.0;	
+    		double cheapest = bidLandscape.cheapestBid(slot, lostPosition() - 1);
+    		if (Double.isNaN(cheapest))
+    			return 1.0;
+    		return Math.min(maxLoseModifier, Math.max(1.0, cheapest / reportedBid));
     	}
     	else
     		return 1.0;
@@ -426,13 +762,13 @@ public class FoolAgent extends Agent {
      * @return
      */
 	private double getSpecialModifier(Query query) {
-		// TODO Fine tune numbers
-		if (query.getComponent() == advertiserInfo.getComponentSpecialty() && query.getManufacturer() == advertiserInfo.getManufacturerSpecialty())
-			return 1.44;
-		else if (query.getComponent() != advertiserInfo.getComponentSpecialty() && query.getManufacturer() != advertiserInfo.getManufacturerSpecialty())
+		// Names are canonical, so they can be compared by reference
+		if (query.getComponent() == componentSpecialty && query.getManufacturer() == manufacturerSpecialty)
+			return parameters.getBothSpecialtiesModifier();
+		else if (query.getComponent() != componentSpecialty && query.getManufacturer() != manufacturerSpecialty)
 			return 1;
 		
-		return 1.2;
+		return parameters.getOneSpecialtyModifier();
 	}
 
 	/**
@@ -441,31 +777,8 @@ public class FoolAgent extends Agent {
 	 * @return
 	 */
 	private double getTypeModifier(int type) {
-		// TODO Fine tune numbers
-		if (type == 2)
-			//F2 highest
-			return 1.2;
-		else if (type == 0)
-			//F0 lowest
-			return 0.8;
-		//F1 middle
-		return 1;
-	}
-
-	/**
-	 * This returns the type of a query
-	 * @param query
-	 * @return 0 for F0, 1 for F1, 2 for F2
-	 */
-	private int getType(Query query) {
-		// Check F2
-		if (query.getComponent() != null && query.getManufacturer() != null)
-			return 2;
-		// Check F0
-		if (query.getComponent() == null && query.getManufacturer() == null)
-			return 0;
-		// Otherwise F1
-		return 1;
+		// F2 highest, F0 lowest by default
+		return parameters.getTypeModifier(type);
 	}
 
 	/**
@@ -474,36 +787,12 @@ public class FoolAgent extends Agent {
 	 * @return
 	 */
 	private double getRankModifier(double rank) {
-		// TODO Fine tune numbers
-		double lambda = 0.18;
+		double lambda = parameters.getRankLambda();
 		// rank here is a double between 0 and 1, 0 for highest rank, 1 for lowest rank
 		// The maximum rank modifier is exp(lambda)
 		return Math.exp(lambda*(1-rank));
 	}
 
-	/**
-	 * This returns the popularity ranking of a certain query
-	 * @param k
-	 * @return 0 for highest ranking and 1 for lowest ranking
-	 */
-	private double rankQuery(Query k, Set<Query> kList) {
-		double kImpression = impressions.get(k);
-		double kValue = values.get(k);
-		double rank = 0.;
-		double totalRank = 0.;
-		for (Query queryItem : kList) {
-			totalRank ++;
-			if (impressions.get(queryItem) > kImpression)
-				rank = rank + 1.;
-		}
-		for (Query queryItem : kList) {
-			totalRank ++;
-			if (values.get(queryItem) > kValue)
-				rank = rank + 1.;
-		}
-		return rank / totalRank;
-	}
-
 	/**
      * Processes an incoming query report.
      *
@@ -511,27 +800,36 @@ public class FoolAgent extends Agent {
      */
     protected void handleQueryReport(QueryReport queryReport) {
     	currQueryReport = queryReport;
-		for (Query query : querySpace) {
-			int index = queryReport.indexForEntry(query);
-			if (index >= 0) {
-				impressions.put(query,impressions.get(query)+queryReport.getImpressions(index));
-				
-				if(queryReport.getImpressions(index) != 0.0)	{					
-					List<Double> tempList = new ArrayList<Double>();				
-					if (impressionData.containsKey(query))	{					
-						tempList.addAll(impressionData.get(query));	
-						//System.out.println("Impressions data before adding : "+impressionData.get(query));
-					} 
-					tempList.add((double)queryReport.getImpressions(index));
-					impressionData.put(query, tempList);
-					//System.out.println("Impressions data after adding : "+impressionData.get(query));
-				}
+    	adPlan.invalidate();
+    	Arrays.fill(queryState.reportEntry, 0, queryState.size(), -1);
+    	// Each entry is looked up once, searching the report for every query is quadratic
+		for (int index = 0; index < queryReport.size(); index++) {
+			int slot = queryIndex.slot(queryReport.getQuery(index));
+			if (slot < 0 || queryState.reportEntry[slot] >= 0)
+				continue;
+			queryState.reportEntry[slot] = index;
+			queryState.impressions[slot] += queryReport.getImpressions(index);
 				
-				clicks.put(query, clicks.get(query)+queryReport.getClicks(index));
+			if(queryReport.getImpressions(index) != 0.0)	{					
+				queryState.impressionHistory[slot].add(queryReport.getImpressions(index));
+				spikeDetector.observe(slot, queryReport.getImpressions(index));
+				//System.out.println("Impressions data after adding : "+queryState.impressionHistory[slot].size());
 			}
+				
+			queryState.clicks[slot] += queryReport.getClicks(index);
+			// The report covers the previous day, whose auctions used the bids sent the day before
+			double reportedBid = bidDelta.getReportedBid(slot);
+			queryModels.observeQuery(slot, queryReport.getImpressions(index), queryReport.getClicks(index),
+					reportedBid, queryReport.getPosition(index));
+			if (landscapeBidding && !Double.isNaN(reportedBid))
+				bidLandscape.observe(slot, reportedBid, queryReport.getPosition(index),
+						queryReport.getCPC(index), queryReport.getImpressions(index));
 			
 			// TODO develop detectBurst(query) function so that we can increase bid accordingly
 		}
+		if (competitorTracking)
+			competitorIndex.record(queryReport, queryState.reportEntry,
+					advertiserInfo != null ? advertiserInfo.getAdvertiserId() : null);
     }
 
     /**
@@ -541,21 +839,30 @@ public class FoolAgent extends Agent {
      */
     protected void handleSalesReport(SalesReport salesReport) {
         salesReports.add(salesReport);
-		for (Query query : querySpace) {
-
-			int index = salesReport.indexForEntry(query);
-			if (index >= 0) {
-				conversions.put(query,conversions.get(query)+salesReport.getConversions(index));
-				values.put(query, values.get(query)+salesReport.getRevenue(index));
+        adPlan.invalidate();
+        double dailyConversion = 0;
+        double dailyRevenue = 0;
+		for (int index = 0; index < salesReport.size(); index++) {
+			int slot = queryIndex.slot(salesReport.getQuery(index));
+			if (slot >= 0) {
+				queryState.conversions[slot] += salesReport.getConversions(index);
+				queryState.values[slot] += salesReport.getRevenue(index);
+				queryModels.observeSales(slot, salesReport.getConversions(index), salesReport.getRevenue(index));
+				dailyConversion += salesReport.getConversions(index);
+				dailyRevenue += salesReport.getRevenue(index);
 			}
 		}
 		
-		if (conversionInWindow.size() < advertiserInfo.getDistributionWindow())
-			conversionInWindow.add(salesReport);
-		else
-		{	conversionInWindow.remove();
-			conversionInWindow.add(salesReport);
-		}
+		// The oldest day leaves the window when it is full
+		if (conversionInWindow.size() == conversionInWindow.capacity())
+			totalConversionInWindow -= conversionInWindow.get(0);
+		conversionInWindow.add(dailyConversion);
+		totalConversionInWindow += dailyConversion;
+		
+		if (revenueInWindow.size() == revenueInWindow.capacity())
+			totalRevenueInWindow -= revenueInWindow.get(0);
+		revenueInWindow.add(dailyRevenue);
+		totalRevenueInWindow += dailyRevenue;
     }
 
     /**
@@ -567,22 +874,89 @@ public class FoolAgent extends Agent {
     protected void handleSimulationStatus(SimulationStatus simulationStatus) {
 
     	simulationDay = simulationStatus.getCurrentDate();
+    	decisionLog.day(simulationDay);
+    	long time = System.nanoTime();
+    	long deadline = bidDeadline(time);
     	
+    	// Queries that never had a bid get their base bid at once, the others keep
+    	// yesterday's bid at the publisher until the refined bundle is sent
     	computeBaseBids();
+    	sendFallbackBids();
+    	time = lap(baseBidsTimer, time);
     	
-    	System.out.println("Current simulation date is "+simulationDay);
-    	
-    	System.out.println("Spike detection started");
-    	spikeDetection();
-    	System.out.println("Spike detection finished");
-    	
-        computeQueryBidLimits();
-    	
-        //System.out.println("Sending bids and ads started");
-        sendBidAndAds();
-        //System.out.println("Sending bids and ads finished");
-        
-        resetSpikeDetection();
+    	// A refinement step that fails costs the refined bids of the day, not the day:
+    	// the fallback bundle has been sent and the spikes are reset all the same
+    	try {
+    		rankIndex.rebuild(queryState.impressions, queryState.values);
+    		capacityModifier = computeCapacityModifier();
+    		time = lap(rankingTimer, time);
+    		
+    		if (!pastDeadline(deadline)) {
+    			spikeDetection(deadline);
+    			time = lap(spikeDetectionTimer, time);
+    		}
+    		
+    		if (!pastDeadline(deadline)) {
+    			computeQueryBidLimits();
+    			time = lap(bidLimitsTimer, time);
+    		}
+    		
+    		if (!pastDeadline(deadline)) {
+    			sendBidAndAds();
+    			lap(sendBidsTimer, time);
+    		} else {
+    			lateDays++;
+    			System.err.format("Day %d bids not refined in time, the publisher keeps the previous bids%n",
+    					simulationDay);
+    		}
+    	} catch (RuntimeException e) {
+    		failedDays++;
+    		// A bundle built in part was not sent, so the next one holds every query
+    		bidDelta.reset();
+    		refinementFailed(e);
+    	} finally {
+    		resetSpikeDetection();
+    		bidDelta.endDay();
+    	}
+    }
+    
+    /**
+     * Called when the bids of a day could not be refined. The publisher keeps the
+     * fallback bids and the previous bids of the other queries.
+     * @param e
+     */
+    protected void refinementFailed(RuntimeException e) {
+    	System.err.println("Day " + simulationDay + " bids not refined, the publisher keeps the previous bids: " + e);
+    }
+    
+    /**
+     * Computes the time by which the bids of the day must be refined: a share of the day
+     * length, less the time already spent on the reports of the day.
+     * @param now
+     * @return the deadline in {@link System#nanoTime()} time, or {@link #NO_DEADLINE}
+     */
+    private long bidDeadline(long now) {
+    	if (startInfo == null || startInfo.getSecondsPerDay() <= 0)
+    		return NO_DEADLINE;
+    	return now + (long) (bidBudgetPercent * startInfo.getSecondsPerDay() * 1e9) - dayNanos;
+    }
+    
+    private static boolean pastDeadline(long deadline) {
+    	return deadline != NO_DEADLINE && System.nanoTime() - deadline > 0;
+    }
+    
+    /**
+     * Sends the base bid of every query that has not been sent a bid yet, so that the
+     * agent takes part in the auctions even if the refined bids come too late. The ads
+     * are left to the refined bundle.
+     */
+    private void sendFallbackBids() {
+    	BidBundle bidBundle = new BidBundle();
+    	for (int slot = 0; slot < queryState.size(); slot++)
+    		if (!bidDelta.isSent(slot))
+    			bidDelta.add(bidBundle, slot, queryState.query(slot), queryState.baseBid[slot], null);
+    	if (bidBundle.size() > 0)
+    		sendBidBundle(bidBundle);
     }
 
     /**
@@ -599,6 +973,15 @@ public class FoolAgent extends Agent {
      */
     protected void handleSlotInfo(SlotInfo slotInfo) {
         this.slotInfo = slotInfo;
+        if (bidLandscape != null)
+        	bidLandscape.setLostPosition(lostPosition());
+    }
+    
+    /**
+     * @return position given to the days the agent was not shown, one past the last regular slot
+     */
+    private double lostPosition() {
+    	return (slotInfo != null ? slotInfo.getRegularSlots() : DEFAULT_REGULAR_SLOTS) + 1;
     }
 
     /**
@@ -608,46 +991,85 @@ public class FoolAgent extends Agent {
     protected void handleRetailCatalog(RetailCatalog retailCatalog) {
         this.retailCatalog = retailCatalog;
 
-        // The query space is all the F0, F1, and F2 queries for each product
-        // The F0 query class
-        if(retailCatalog.size() > 0) {
-            querySpace.add(new Query(null, null));
-        }
+        // The query space is all the F0, F1, and F2 queries for each product,
+        // built once with the canonical queries and ads of the catalog
+        catalog.build(retailCatalog);
+        internSpecialties();
         
-
-        for(Product product : retailCatalog) {
-            // The F1 query classes
-            // F1 Manufacturer only
-            querySpace.add(new Query(product.getManufacturer(), null));
-            // F1 Component only
-            querySpace.add(new Query(null, product.getComponent()));
-            // The F2 query class
-            querySpace.add(new Query(product.getManufacturer(), product.getComponent()));
-            
-        	queriesForComponent.put(product.getComponent(), new LinkedHashSet<Query> ());
-        	queriesForManufacturer.put(product.getManufacturer(), new LinkedHashSet<Query> ());
-        }
+        KnowledgeStore knowledge = openKnowledge();
         
-		for (Query query : querySpace) {
-			impressions.put(query, 100.);
-			clicks.put(query, 9.);
-			conversions.put(query,1.); 
-			values.put(query, retailCatalog.getSalesProfit(0));
-		
-			if ( query.getComponent() != null && query.getManufacturer() != null) {
-				queriesForComponent.get(query.getComponent()).add(query);
-				queriesForManufacturer.get(query.getManufacturer()).add(query);}
+		for (int id = 0; id < catalog.size(); id++) {
+			Query query = catalog.query(id);
+			querySpace.add(query);
+			int slot = queryState.add(query);
+			queryState.queryAd[slot] = catalog.ad(id);
+			int record = knowledge.record(query);
+			if (record >= 0 && knowledge.getDays(record) > 0) {
+				// Average day of the past games
+				double weight = knowledgePriorDays / knowledge.getDays(record);
+				queryState.seed(slot, weight * knowledge.getImpressions(record),
+						weight * knowledge.getClicks(record), weight * knowledge.getConversions(record),
+						weight * knowledge.getValues(record));
+			} else {
+				queryState.seed(slot, 100., 9., 1., retailCatalog.getSalesProfit(0));
+			}
 		}	
 		
+		queryIndex.build(queryState);
+		rankIndex.setup(queryIndex);
+		queryModels.setup(queryState.size());
+		bidLandscape.setup(queryState.size());
+		budgetAllocator.setup(queryState.size());
+		competitorIndex.setup(queryIndex);
+		for (int slot = 0; slot < queryState.size(); slot++)
+			queryModels.seed(slot, queryState.priorImpressions[slot], queryState.priorClicks[slot],
+					queryState.priorConversions[slot], queryState.priorValues[slot]);
+		setupBidPolicy();
+		adPlan.setup(queryState.size());
+		bidDelta.setup(queryState.size());
+		
+		spikeDetector.setup(queryState.size());
     }
-
+    
+    /**
+     * Opens the statistics of the past games. The agent plays with the fixed priors if
+     * they cannot be read.
+     * @return
+     */
+    private KnowledgeStore openKnowledge() {
+    	if (knowledgeFile != null) {
+    		try {
+    			return KnowledgeStore.open(knowledgeFile);
+    		} catch (IOException e) {
+    			System.err.println("Could not open knowledge store " + knowledgeFile + ": " + e);
+    		}
+    	}
+    	return KnowledgeStore.EMPTY;
+    }
+    
     /**
      * Processes the advertiser information.
      * @param advertiserInfo the advertiser information.
      */
     protected void handleAdvertiserInfo(AdvertiserInfo advertiserInfo) {
         this.advertiserInfo = advertiserInfo;
+        internSpecialties();
+        setupBidPolicy();
         publisherAddress = advertiserInfo.getPublisherId();
+        adPlan.invalidate();
+        conversionInWindow = new DoubleRingBuffer(advertiserInfo.getDistributionWindow());
+        totalConversionInWindow = 0;
+    }
+
+    /**
+     * Takes the specialties of the agent from the catalog, so that they can be compared
+     * with the names of the queries by reference.
+     */
+    private void internSpecialties() {
+    	if (advertiserInfo == null)
+    		return;
+    	manufacturerSpecialty = catalog.intern(advertiserInfo.getManufacturerSpecialty());
+    	componentSpecialty = catalog.intern(advertiserInfo.getComponentSpecialty());
     }
 
     /**
@@ -662,7 +1084,95 @@ public class FoolAgent extends Agent {
      * Prepares the agent for a new simulation.
      */
     protected void simulationSetup() {    	
+    	closeReportPipeline();
+    	spikeDetector = createSpikeDetector();
     	initializeSpikeDetection();
+    	bidDelta = new BidDelta(bidChangeTolerance, spendLimitChangePercent);
+    	queryModels = new QueryModels(modelDecay, conversionFitForgetting);
+    	bidLandscape = new BidLandscape(landscapeHistoryDays, lostPosition());
+    	budgetAllocator = new BudgetAllocator(spendLimitHeadroom, minimumBudgetReturn);
+    	revenueInWindow = new DoubleRingBuffer(budgetRevenueDays);
+    	competitorIndex = new CompetitorIndex(competitorHistoryDays);
+    	totalRevenueInWindow = 0;
+    	metrics.reset();
+    	dayNanos = 0;
+    	slowDays = 0;
+    	lateDays = 0;
+    	failedDays = 0;
+    	
+    	decisionLog.close();
+    	decisionLog = new DecisionLog(decisionLogCapacity, decisionLogLevel);
+    	try {
+    		decisionLog.start(decisionLogFile);
+    	} catch (IOException e) {
+    		System.err.println("Could not open decision log " + decisionLogFile + ": " + e);
+    		decisionLog = new DecisionLog(2, DecisionLog.Level.OFF);
+    	}
+    	
+    	if (pipelinedIngestion) {
+    		reportPipeline = new ReportPipeline(reportPipelineCapacity, new ReportPipeline.Handler() {
+    			@Override
+    			public void process(Transportable content) {
+    				processReport(content);
+    			}
+    		});
+    		reportPipeline.start();
+    	}
+    	
+    	closeTrace();
+    	if (traceDirectory != null) {
+    		File file = new File(traceDirectory, "fool-" + System.currentTimeMillis() + ".trace");
+    		try {
+    			traceRecorder = new TraceRecorder(file.getPath());
+    		} catch (IOException e) {
+    			System.err.println("Could not open message trace " + file + ": " + e);
+    		}
+    	}
+    }
+    
+    /**
+     * Appends a message to the trace of the game. The trace is abandoned if it cannot be
+     * written, the game goes on.
+     * @param direction
+     * @param content
+     */
+    private void recordTrace(byte direction, Transportable content) {
+    	try {
+    		traceRecorder.record(direction, content);
+    	} catch (IOException e) {
+    		System.err.println("Message trace stopped: " + e);
+    		closeTrace();
+    	}
+    }
+    
+    private void closeReportPipeline() {
+    	if (reportPipeline == null)
+    		return;
+    	reportPipeline.close();
+    	reportPipeline = null;
+    }
+    
+    private void closeTrace() {
+    	if (traceRecorder == null)
+    		return;
+    	try {
+    		traceRecorder.close();
+    	} catch (IOException e) {
+    		System.err.println("Message trace not closed: " + e);
+    	}
+    	traceRecorder = null;
+    }
+    
+    /**
+     * Creates the spike detector used for the simulation.
+     * @return
+     */
+    protected SpikeDetector createSpikeDetector() {
+    	if (streamingSpikeDetection)
+    		return new EwmaSpikeDetector(minSpikeImpressionsDays, parameters.getMinSpikeImpressionsDifference(),
+    				spikeImpressionsSmoothing, spikeImpressionsZScore);
+    	return new TwoMeansSpikeDetector(impressionHistoryDays, minSpikeImpressionsDays,
+    			parameters.getMinSpikeImpressionsDifference());
     }
 
     /**
@@ -670,204 +1180,133 @@ public class FoolAgent extends Agent {
      * day d-1 will last only the following day (day d+1).
      */
 	private void resetSpikeDetection() {
-		for (Query query : querySpace) {
-    		spikeDetect.put(query, false);
-		}
+		queryState.spikeDetect.clear();
 	}
 
     /**
      * Initialize spikes. Sets all spikes to false. 
      */
 	private void initializeSpikeDetection() {
-		for (Query query : querySpace) {
-    		spikeDetect.put(query, false);
-    		spikeDetectPreviousDay.put(query, false);
-		}
+		queryState.spikeDetect.clear();
+		queryState.spikeDetectPreviousDay.clear();
 	}
 	
 	/**
      * Runs any post-processes required for the agent after a simulation ends.
      */
     protected void simulationFinished() {
+        closeReportPipeline();
+        decisionLog.close();
+        closeTrace();
+        if (printMetrics)
+        	System.out.print(metrics.snapshot());
+        if (knowledgeFile != null && simulationDay > 0) {
+        	try {
+        		KnowledgeStore.update(knowledgeFile, queryState, simulationDay);
+        	} catch (IOException e) {
+        		System.err.println("Could not update knowledge store " + knowledgeFile + ": " + e);
+        	}
+        }
         salesReports.clear();
         queryReports.clear();
         querySpace.clear();    
-        impressions.clear();
-        clicks.clear();
-        conversions.clear();
-        values.clear();
-        impressionData.clear();
-        baseBid.clear();
-        maxBid.clear();
-        spikeDetect.clear();
-        spikeDetectPreviousDay.clear();
-        conversionInWindow.clear();
-    }
-    
-    static class ValueComparator implements Comparator<Query> {
-
-        Map<Query, Double> base;
-
-        ValueComparator(Map<Query, Double> base) {
-            this.base = base;
-        }
-
-        @Override
-        public int compare(Query a, Query b) {
-        	Double x = base.get(a);
-        	Double y = base.get(b);
-            if (x.equals(y)) {
-                return -1;
-            }
-            return x.compareTo(y);
-        }
+        queryState.clear();
+        queryIndex.build(queryState);
+        if (conversionInWindow != null)
+        	conversionInWindow.clear();
+        totalConversionInWindow = 0;
     }
     
     /**
      * Computes the base bid value for each type of product
      */
     private void computeBaseBids()	{
-    	for (Query query : querySpace) {
-    		Ad ad = getAd(query);
-        	Product product = ad.getProduct();  
-    		//baseBid.put(query, retailCatalog.getSalesProfit(product) * baseBidPerProductRevenuePercent);
-        	baseBid.put(query, 10 * baseBidPerProductRevenuePercent);
-    		//System.out.println("Curr Product: "+product.getManufacturer()+"\t"+
-    		//		product.getComponent()+"\t"+baseBid.get(query));
+    	for (int slot = 0; slot < queryState.size(); slot++) {
+    		// Does not depend on the ad of the day, so it can be used before the ranking
+    		//queryState.baseBid[slot] = retailCatalog.getSalesProfit(product) * baseBidPerProductRevenuePercent;
+        	queryState.baseBid[slot] = 10 * parameters.getBaseBidPerProductRevenuePercent();
     	}
     }
 
     /**
      * Computes the maximum bid value for each type of product
      */
-    private void computeQueryBidLimits()	{
-    	SalesReport salesReport = salesReports.get(salesReports.size()-1);
+    void computeQueryBidLimits()	{
+    	// No sales report arrives before day 1, the queries then bid their base bid at most
+    	SalesReport salesReport = salesReports.isEmpty() ? null : salesReports.get(salesReports.size()-1);
     	double totalRevenuePerDay = 0;
     	double totalRevenuePerProduct = 0;
     	double maxBidCurrProduct = 0;
     	double totalProductRevenue = 0;
     	double totalRevenue = 0;
     	
-		for (Query query : querySpace) {
-			int index = salesReport.indexForEntry(query);
-			if (index >= 0) {
+		for (int index = 0; salesReport != null && index < salesReport.size(); index++) {
+			if (queryIndex.slot(salesReport.getQuery(index)) >= 0) {
 				totalRevenuePerDay += salesReport.getRevenue(index);
 				totalRevenuePerProduct += salesReport.getRevenue(index);
 			}
-			
-			if(values.containsKey(query))
-				totalRevenue += values.get(query);
 		}
+		for (int slot = 0; slot < queryState.size(); slot++)
+			totalRevenue += queryState.values[slot];
 		
-		for (Query query : querySpace) {
-    		Ad ad = getAd(query);
+		for (int slot = 0; slot < queryState.size(); slot++) {
+    		Ad ad = getAd(slot);
         	Product product = ad.getProduct();  
         	
-        	if(values.containsKey(query))
-        		totalProductRevenue = values.get(query);
+        	totalProductRevenue = queryState.values[slot];
         	
         	//maxBidCurrProduct = retailCatalog.getSalesProfit(product) * 
         	//		(totalRevenuePerDay/totalRevenuePerProduct);
         	
         	//if (totalRevenue)
-        	if(totalProductRevenue <= 0 || totalRevenue <= 0)	{
-        		maxBidCurrProduct = baseBid.get(query);
+        	if(salesReport == null || totalProductRevenue <= 0 || totalRevenue <= 0)	{
+        		maxBidCurrProduct = queryState.baseBid[slot];
         	} else {
         		//maxBidCurrProduct = maxBidFactor * retailCatalog.getSalesProfit(product) * 
         		//		(totalProductRevenue/totalRevenue);
-        		maxBidCurrProduct = maxBidFactor * 10 * 
+        		maxBidCurrProduct = parameters.getMaxBidFactor() * 10 * 
         				(totalProductRevenue/totalRevenue);
         	}        	
-			maxBid.put(query, Math.max(2, maxBidCurrProduct));
+			queryState.maxBid[slot] = Math.max(2, maxBidCurrProduct);
 			
     		//System.out.println("Curr Product: "+product.getManufacturer()+"\t"+
-    		//		product.getComponent()+"\t"+baseBid.get(query)+"\t"+maxBid.get(query));
+    		//		product.getComponent()+"\t"+queryState.baseBid[slot]+"\t"+queryState.maxBid[slot]);
 
 		}
     }
 
-    private void spikeDetection()	{    	
-    	
-    	double clusterCenter1 = 0;
-    	double clusterCenter2 = 0;
-    	boolean first = true;
+    /**
+     * Flags the queries whose impressions are spiking. A spike is only reported once,
+     * the day after it is detected the query goes back to regular bidding.
+     */
+    void spikeDetection()	{
+    	spikeDetection(NO_DEADLINE);
+    }
+    
+    /**
+     * Flags the queries whose impressions are spiking, until a deadline. The queries
+     * left when the deadline passes are not flagged.
+     * @param deadline in {@link System#nanoTime()} time, or {@link #NO_DEADLINE}
+     */
+    void spikeDetection(long deadline)	{    	
     	
     	if(simulationDay > 1){  
     		//System.out.println("Spike: Valid day");
-    		for (Query query : querySpace) {
-    			Dataset productImpressions = new DefaultDataset();
-    			List<Double> currImpressionData = new ArrayList<Double>();
+    		for (int slot = 0; slot < queryState.size(); slot++) {
+    			if ((slot & 15) == 15 && pastDeadline(deadline))
+    				break;
+    			boolean spike = spikeDetector.detect(slot, queryState.impressionHistory[slot]);
     			
-    			if (impressionData.containsKey(query)){
-    				//System.out.println("Curr impression data : "+impressionData.get(query));
-    				if(impressionData.get(query).size()>=10)	{
-    					//System.out.println("Spike: Adding all points");
-    					currImpressionData.addAll(impressionData.get(query));
-    				} else {
-    					//System.out.println("Spike: Less than 10 points");
-    					spikeDetectPreviousDay.put(query,false);
-    					continue;
-    				}
-    			} else {
-    				//System.out.println("Spike: No query data");
-    				//System.out.println("Spike: Adding 0.0 point");
-    				//currImpressionData.add(0.0);
-					spikeDetectPreviousDay.put(query,false);
-					continue;
-    			}
-
-    			/*double[] value = new double[currImpressionData.size()];
-    			for(int i=0; i<currImpressionData.size(); i++)	{
-    				value[i] = currImpressionData.get(i);
-    				
-    			}*/
-    			
-    			for(ListIterator<Double> iter = currImpressionData.listIterator(); iter.hasNext();)	{
-    				double[] value = new double[] {iter.next()};
-    				Instance instance = new DenseInstance(value);
-    				productImpressions.add(instance);
-    			}
-    			
-    			//System.out.println("Before kmeans");
-    			Dataset[] clusteredImpressions = kmeansClusterer.cluster(productImpressions);
-    			//System.out.println("After kmeans");
+    			if (spikeDetector.getPeak() != 0)
+    				decisionLog.spike(simulationDay, queryState.query(slot),
+    						spikeDetector.getBaseline(), spikeDetector.getPeak(), spike);
     			
-    			System.out.println("Clustering results : "+clusteredImpressions);
-    			if (clusteredImpressions.length != 2)	{
-    				System.out.println("Number of clusters found is not 2 (cluster = "+clusteredImpressions.length+" )");
-    				continue;
-    				//System.exit(simulationDay);
+    			if (spike && !queryState.spikeDetectPreviousDay.get(slot)) {
+    				queryState.spikeDetect.set(slot);
+    				queryState.spikeDetectPreviousDay.set(slot);
     			} else {
-        			spikeDetectPreviousDay.put(query,false);
-        		}
-    			
-        		for (Dataset currCluster : clusteredImpressions){
-        			Instance avgInstance = DatasetTools.average(currCluster);
-        			if(first)	{
-        				clusterCenter1 = avgInstance.value(0);
-        				first = false;
-        			} else	{
-        				clusterCenter2 = avgInstance.value(0);
-        			}        			
-        		}
-        		System.out.println("Cluster centers : "+clusterCenter1+"\t"+clusterCenter2);
-        		
-        		if(Math.min(clusterCenter1,clusterCenter2)!=0)	{
-        			if(Math.max(clusterCenter1,clusterCenter2)
-        					-Math.min(clusterCenter1,clusterCenter2) > 
-        					minSpikeImpressionsDifference * Math.min(clusterCenter1,clusterCenter2))	{
-        				if(!spikeDetectPreviousDay.get(query)){
-        					spikeDetect.put(query, true);
-        					spikeDetectPreviousDay.put(query,true);
-        				} else {
-        					spikeDetectPreviousDay.put(query,false);
-        				}
-        			} else {
-        				spikeDetectPreviousDay.put(query,false);
-        			}
-        		} else {
-        			spikeDetectPreviousDay.put(query,false);
-        		}
+    				queryState.spikeDetectPreviousDay.clear(slot);
+    			}
     		}
     	}
     }    
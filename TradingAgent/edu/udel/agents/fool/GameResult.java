@@ -0,0 +1,100 @@
+package edu.udel.agents.fool;
+
+/**
+ * Outcome of one simulated game for the agent.
+ */
+public class GameResult {
+
+	private final double revenue;
+	private final double cost;
+	private final long impressions;
+	private final long clicks;
+	private final long conversions;
+	private final int bidBundles;
+	private final int bids;
+	private final double bidTotal;
+	private final int errors;
+	private final long nanos;
+
+	public GameResult(double revenue, double cost, long impressions, long clicks, long conversions,
+			int bidBundles, int bids, double bidTotal, int errors, long nanos) {
+		this.revenue = revenue;
+		this.cost = cost;
+		this.impressions = impressions;
+		this.clicks = clicks;
+		this.conversions = conversions;
+		this.bidBundles = bidBundles;
+		this.bids = bids;
+		this.bidTotal = bidTotal;
+		this.errors = errors;
+		this.nanos = nanos;
+	}
+
+	public double getRevenue() {
+		return revenue;
+	}
+
+	public double getCost() {
+		return cost;
+	}
+
+	/**
+	 * @return revenue minus advertising cost
+	 */
+	public double getProfit() {
+		return revenue - cost;
+	}
+
+	public long getImpressions() {
+		return impressions;
+	}
+
+	public long getClicks() {
+		return clicks;
+	}
+
+	public long getConversions() {
+		return conversions;
+	}
+
+	/**
+	 * @return number of bid bundles sent
+	 */
+	public int getBidBundles() {
+		return bidBundles;
+	}
+
+	/**
+	 * @return number of explicit bids sent over all bundles
+	 */
+	public int getBids() {
+		return bids;
+	}
+
+	/**
+	 * @return average explicit bid
+	 */
+	public double getMeanBid() {
+		return bids == 0 ? 0 : bidTotal / bids;
+	}
+
+	/**
+	 * @return number of messages whose processing failed
+	 */
+	public int getErrors() {
+		return errors;
+	}
+
+	/**
+	 * @return wall-clock time of the game in nanoseconds
+	 */
+	public long getNanos() {
+		return nanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("profit %.2f\trevenue %.2f\tcost %.2f\tclicks %d\tconversions %d\tbundles %d\tmean bid %.3f\terrors %d\t%.2f ms",
+				getProfit(), revenue, cost, clicks, conversions, bidBundles, getMeanBid(), errors, nanos / 1e6);
+	}
+}
@@ -0,0 +1,269 @@
+package edu.udel.agents.fool;
+
+import edu.umich.eecs.tac.props.Query;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-query statistics accumulated over the games played by the agent, kept in a file
+ * that is memory-mapped read-only. The statistics of a query are read straight from the
+ * mapping when the next game starts, only the record index is built when the file is
+ * opened.
+ * <p>
+ * The file is a header (magic number, version, number of records) followed by fixed-size
+ * records: the manufacturer and component of the query, each as a length and up to
+ * {@link #MAX_NAME_BYTES} bytes of UTF-8, then the number of games and days the query was
+ * seen and its total impressions, clicks, conversions and revenue.
+ * <p>
+ * A file is never modified once written. {@link #update} writes the merged statistics to a
+ * temporary file and renames it over the store, holding a lock file so that agents on the
+ * same host do not lose each other's games. Agents that have the old file mapped keep
+ * reading it unchanged, so any number of processes can share the store.
+ */
+public class KnowledgeStore {
+
+	static final int MAGIC = 0x464f4b53;
+	static final int VERSION = 1;
+
+	static final int HEADER = 16;
+	static final int MAX_NAME_BYTES = 30;
+	private static final int NAME = 2 + MAX_NAME_BYTES;
+	static final int RECORD = 2 * NAME + 6 * 8;
+
+	//Offsets of the statistics in a record
+	private static final int GAMES = 2 * NAME;
+	private static final int DAYS = GAMES + 8;
+	private static final int IMPRESSIONS = DAYS + 8;
+	private static final int CLICKS = IMPRESSIONS + 8;
+	private static final int CONVERSIONS = CLICKS + 8;
+	private static final int VALUES = CONVERSIONS + 8;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	//Store with no records, used when there is no file yet
+	static final KnowledgeStore EMPTY = new KnowledgeStore(ByteBuffer.allocate(HEADER),
+			new HashMap<Query, Integer>());
+
+	private final ByteBuffer buffer;
+
+	//Offset of the record of each query
+	private final Map<Query, Integer> records;
+
+	private KnowledgeStore(ByteBuffer buffer, Map<Query, Integer> records) {
+		this.buffer = buffer;
+		this.records = records;
+	}
+
+	/**
+	 * Maps a store read-only.
+	 * @param file
+	 * @return the store, empty if the file does not exist
+	 * @throws IOException if the file cannot be read or is not a knowledge store
+	 */
+	public static KnowledgeStore open(String file) throws IOException {
+		if (!new File(file).isFile())
+			return EMPTY;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		MappedByteBuffer buffer;
+		try {
+			// The mapping stays valid after the channel is closed
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+
+		if (buffer.capacity() < HEADER || buffer.getInt(0) != MAGIC)
+			throw new IOException(file + " is not a knowledge store");
+		if (buffer.getInt(4) != VERSION)
+			throw new IOException(file + " has unsupported knowledge store version " + buffer.getInt(4));
+		int count = buffer.getInt(8);
+		if (count < 0 || (long) HEADER + (long) count * RECORD > buffer.capacity())
+			throw new IOException(file + " is truncated");
+
+		Map<Query, Integer> records = new HashMap<Query, Integer>();
+		for (int i = 0; i < count; i++) {
+			int offset = HEADER + i * RECORD;
+			records.put(new Query(readName(buffer, offset), readName(buffer, offset + NAME)), offset);
+		}
+		return new KnowledgeStore(buffer, records);
+	}
+
+	/**
+	 * @return number of queries in the store
+	 */
+	public int size() {
+		return records.size();
+	}
+
+	/**
+	 * This returns the record of a certain query
+	 * @param query
+	 * @return the record, or -1 if the query has never been seen
+	 */
+	public int record(Query query) {
+		Integer offset = records.get(query);
+		return offset == null ? -1 : offset;
+	}
+
+	/**
+	 * @param record
+	 * @return number of games the query was seen in
+	 */
+	public double getGames(int record) {
+		return buffer.getDouble(record + GAMES);
+	}
+
+	/**
+	 * @param record
+	 * @return number of days of reports the query was seen in
+	 */
+	public double getDays(int record) {
+		return buffer.getDouble(record + DAYS);
+	}
+
+	public double getImpressions(int record) {
+		return buffer.getDouble(record + IMPRESSIONS);
+	}
+
+	public double getClicks(int record) {
+		return buffer.getDouble(record + CLICKS);
+	}
+
+	public double getConversions(int record) {
+		return buffer.getDouble(record + CONVERSIONS);
+	}
+
+	public double getValues(int record) {
+		return buffer.getDouble(record + VALUES);
+	}
+
+	/**
+	 * Adds the statistics of a game to a store, creating it if needed.
+	 * @param file
+	 * @param game statistics of the queries observed during the game, not including any prior
+	 * @param days number of days of reports of the game
+	 * @throws IOException if the store cannot be read or written
+	 */
+	public static void update(String file, QueryStateTable game, int days) throws IOException {
+		File target = new File(file).getAbsoluteFile();
+		// File locks are held by the whole process, the agents of one process take turns here
+		synchronized (KnowledgeStore.class) {
+			RandomAccessFile lockFile = new RandomAccessFile(target.getPath() + ".lock", "rw");
+			try {
+				FileLock lock = lockFile.getChannel().lock();
+				try {
+					write(target, merge(open(target.getPath()), game, days));
+				} finally {
+					lock.release();
+				}
+			} finally {
+				lockFile.close();
+			}
+		}
+	}
+
+	/**
+	 * Adds the statistics of a game to those of a store.
+	 * @param store
+	 * @param game
+	 * @param days
+	 * @return the statistics of each query, in the order of the records of the new store
+	 */
+	private static Map<Query, double[]> merge(KnowledgeStore store, QueryStateTable game, int days) {
+		Map<Query, double[]> merged = new LinkedHashMap<Query, double[]>();
+		for (Map.Entry<Query, Integer> entry : store.records.entrySet()) {
+			int record = entry.getValue();
+			merged.put(entry.getKey(), new double[] { store.getGames(record), store.getDays(record),
+					store.getImpressions(record), store.getClicks(record), store.getConversions(record),
+					store.getValues(record) });
+		}
+		for (int slot = 0; slot < game.size(); slot++) {
+			Query query = game.query(slot);
+			if (!fits(query.getManufacturer()) || !fits(query.getComponent()))
+				continue;
+			double[] stats = merged.get(query);
+			if (stats == null) {
+				stats = new double[6];
+				merged.put(query, stats);
+			}
+			stats[0] += 1;
+			stats[1] += days;
+			stats[2] += game.impressions[slot] - game.priorImpressions[slot];
+			stats[3] += game.clicks[slot] - game.priorClicks[slot];
+			stats[4] += game.conversions[slot] - game.priorConversions[slot];
+			stats[5] += game.values[slot] - game.priorValues[slot];
+		}
+		return merged;
+	}
+
+	/**
+	 * Writes a store next to its target and renames it over the target.
+	 * @param target
+	 * @param stats
+	 * @throws IOException
+	 */
+	private static void write(File target, Map<Query, double[]> stats) throws IOException {
+		File temp = new File(target.getPath() + ".tmp");
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER + stats.size() * RECORD);
+		buffer.putInt(MAGIC).putInt(VERSION).putInt(stats.size()).putInt(0);
+		for (Map.Entry<Query, double[]> entry : stats.entrySet()) {
+			int offset = buffer.position();
+			writeName(buffer, offset, entry.getKey().getManufacturer());
+			writeName(buffer, offset + NAME, entry.getKey().getComponent());
+			buffer.position(offset + GAMES);
+			for (double value : entry.getValue())
+				buffer.putDouble(value);
+		}
+		buffer.flip();
+
+		RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			channel.force(true);
+		} finally {
+			raf.close();
+		}
+		// The rename replaces the store at once, readers see the old or the new file
+		if (!temp.renameTo(target) && !(target.delete() && temp.renameTo(target)))
+			throw new IOException("Could not replace " + target + " with " + temp);
+	}
+
+	private static boolean fits(String name) {
+		return name == null || name.getBytes(UTF8).length <= MAX_NAME_BYTES;
+	}
+
+	//A null name is stored with length -1
+	private static String readName(ByteBuffer buffer, int offset) {
+		int length = buffer.getShort(offset);
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++)
+			bytes[i] = buffer.get(offset + 2 + i);
+		return new String(bytes, UTF8);
+	}
+
+	private static void writeName(ByteBuffer buffer, int offset, String name) {
+		if (name == null) {
+			buffer.putShort(offset, (short) -1);
+			return;
+		}
+		byte[] bytes = name.getBytes(UTF8);
+		buffer.putShort(offset, (short) bytes.length);
+		for (int i = 0; i < bytes.length; i++)
+			buffer.put(offset + 2 + i, bytes[i]);
+	}
+}
@@ -0,0 +1,135 @@
+package edu.udel.agents.fool;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of latencies in nanoseconds with a bounded relative error, in the style of
+ * HdrHistogram. Values are counted in buckets that split every power of two into 32
+ * sub-buckets, so any recorded value is known within about 3% while the whole range of
+ * a long fits in a fixed array. Recording is a few shifts and an array increment.
+ * <p>
+ * A histogram is recorded from a single thread; use {@link #copy()} to read it elsewhere.
+ */
+public class LatencyHistogram {
+
+	//Sub-buckets per power of two, as a power of two
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final long[] counts = new long[(64 - SUB_BUCKET_BITS) * SUB_BUCKETS];
+
+	private long count = 0;
+	private long total = 0;
+	private long min = Long.MAX_VALUE;
+	private long max = 0;
+
+	/**
+	 * Records one latency.
+	 * @param nanos latency in nanoseconds, negative values are counted as 0
+	 */
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		counts[index(value)]++;
+		count++;
+		total += value;
+		if (value < min)
+			min = value;
+		if (value > max)
+			max = value;
+	}
+
+	/**
+	 * @return number of recorded latencies
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return sum of the recorded latencies in nanoseconds
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * @return smallest recorded latency, 0 if nothing was recorded
+	 */
+	public long getMin() {
+		return count == 0 ? 0 : min;
+	}
+
+	/**
+	 * @return largest recorded latency
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * @return average latency, 0 if nothing was recorded
+	 */
+	public double getMean() {
+		return count == 0 ? 0 : (double) total / count;
+	}
+
+	/**
+	 * This returns the latency below which a percentage of the recorded latencies fall
+	 * @param percentile between 0 and 100
+	 * @return upper bound of the bucket holding the percentile, 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile) {
+		if (count == 0)
+			return 0;
+		long rank = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * count);
+		rank = Math.max(1, rank);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(max, upperBound(i));
+		}
+		return max;
+	}
+
+	/**
+	 * Removes all recorded latencies.
+	 */
+	public void reset() {
+		Arrays.fill(counts, 0);
+		count = 0;
+		total = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+
+	/**
+	 * @return an independent copy of the histogram
+	 */
+	public LatencyHistogram copy() {
+		LatencyHistogram copy = new LatencyHistogram();
+		System.arraycopy(counts, 0, copy.counts, 0, counts.length);
+		copy.count = count;
+		copy.total = total;
+		copy.min = min;
+		copy.max = max;
+		return copy;
+	}
+
+	private static int index(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long upperBound(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = index % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return ((SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+	}
+}
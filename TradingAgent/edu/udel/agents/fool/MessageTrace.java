@@ -0,0 +1,165 @@
+package edu.udel.agents.fool;
+
+import edu.umich.eecs.tac.props.AAInfo;
+import se.sics.isl.transport.BinaryTransportReader;
+import se.sics.isl.transport.BinaryTransportWriter;
+import se.sics.isl.transport.Context;
+import se.sics.isl.transport.Transportable;
+import se.sics.tasim.props.SimulationStatus;
+import se.sics.tasim.props.StartInfo;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.text.ParseException;
+
+/**
+ * Format of the message traces of {@link FoolAgent}. A trace starts with a magic number
+ * and a version, followed by one record per message: a direction byte, the length of the
+ * message and the message in the binary transport encoding of the TAC AA server. The
+ * records are in the order the messages were received and sent.
+ * <p>
+ * Every message is encoded on its own, so a record can be decoded without the ones
+ * before it and two equal messages always have the same bytes.
+ */
+public class MessageTrace implements Closeable {
+
+	static final int MAGIC = 0x464f4f4c;
+	static final int VERSION = 1;
+
+	//Directions of a record
+	public static final byte RECEIVED = 1;
+	public static final byte SENT = 2;
+
+	//Size of the direction and length of a record
+	static final int RECORD_HEADER = 5;
+
+	private static final Context CONTEXT = createContext();
+
+	private final DataInputStream in;
+
+	//Record read last
+	private byte direction;
+	private byte[] bytes = new byte[0];
+	private int length;
+
+	/**
+	 * Opens a trace for reading.
+	 * @param file
+	 * @throws IOException if the file cannot be read or is not a trace
+	 */
+	public MessageTrace(String file) throws IOException {
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		if (in.readInt() != MAGIC) {
+			in.close();
+			throw new IOException(file + " is not a message trace");
+		}
+		int version = in.readInt();
+		if (version != VERSION) {
+			in.close();
+			throw new IOException(file + " has unsupported trace version " + version);
+		}
+	}
+
+	/**
+	 * Reads the next record.
+	 * @return false at the end of the trace
+	 * @throws IOException if the trace cannot be read or ends within a record
+	 */
+	public boolean next() throws IOException {
+		int first = in.read();
+		if (first < 0)
+			return false;
+		direction = (byte) first;
+		length = in.readInt();
+		if (length < 0)
+			throw new IOException("Corrupt trace record of length " + length);
+		if (bytes.length < length)
+			bytes = new byte[Math.max(length, 2 * bytes.length)];
+		try {
+			in.readFully(bytes, 0, length);
+		} catch (EOFException e) {
+			throw new IOException("Trace ends within a record", e);
+		}
+		return true;
+	}
+
+	/**
+	 * @return direction of the current record, {@link #RECEIVED} or {@link #SENT}
+	 */
+	public byte getDirection() {
+		return direction;
+	}
+
+	/**
+	 * @return encoded message of the current record
+	 */
+	public byte[] getBytes() {
+		byte[] copy = new byte[length];
+		System.arraycopy(bytes, 0, copy, 0, length);
+		return copy;
+	}
+
+	/**
+	 * Decodes the message of the current record.
+	 * @return
+	 * @throws ParseException if the record is not a known message
+	 */
+	public Transportable getMessage() throws ParseException {
+		return decode(bytes, 0, length);
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Creates a writer and encodes a message with it.
+	 * @param content
+	 * @return the writer, holding the encoded message
+	 */
+	static BinaryTransportWriter encoder(Transportable content) {
+		BinaryTransportWriter writer = new BinaryTransportWriter();
+		writer.write(content);
+		writer.finish();
+		return writer;
+	}
+
+	/**
+	 * @param content
+	 * @return the encoding of a message as it is stored in a trace
+	 */
+	public static byte[] encode(Transportable content) {
+		return encoder(content).getBytes();
+	}
+
+	/**
+	 * Decodes a message stored in a trace.
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @return
+	 * @throws ParseException if the bytes are not a known message
+	 */
+	public static Transportable decode(byte[] bytes, int offset, int length) throws ParseException {
+		BinaryTransportReader reader = new BinaryTransportReader();
+		reader.setContext(CONTEXT);
+		reader.setMessage(bytes, offset, length);
+		reader.nextNode(false);
+		return reader.readTransportable();
+	}
+
+	/**
+	 * The TAC AA messages plus the framework messages the agent receives.
+	 */
+	private static Context createContext() {
+		Context context = new AAInfo().createContext();
+		context.addTransportable(new StartInfo());
+		context.addTransportable(new SimulationStatus());
+		return context;
+	}
+}
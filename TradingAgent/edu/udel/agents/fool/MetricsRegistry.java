@@ -0,0 +1,64 @@
+package edu.udel.agents.fool;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Named latency timers of the agent. Each timer is registered once and then addressed
+ * by the int id returned at registration, so recording a latency does not look up the
+ * name. The current state of all timers is read through {@link #snapshot()}.
+ */
+public class MetricsRegistry {
+
+	private final List<String> names = new ArrayList<String>();
+	private final List<LatencyHistogram> histograms = new ArrayList<LatencyHistogram>();
+
+	/**
+	 * Registers a timer, or returns the id of an existing timer with the same name.
+	 * @param name
+	 * @return id of the timer
+	 */
+	public int register(String name) {
+		int id = names.indexOf(name);
+		if (id >= 0)
+			return id;
+		names.add(name);
+		histograms.add(new LatencyHistogram());
+		return names.size() - 1;
+	}
+
+	/**
+	 * Records a latency.
+	 * @param id id of the timer
+	 * @param nanos latency in nanoseconds
+	 */
+	public void record(int id, long nanos) {
+		histograms.get(id).record(nanos);
+	}
+
+	/**
+	 * @param id id of the timer
+	 * @return the histogram of the timer
+	 */
+	public LatencyHistogram get(int id) {
+		return histograms.get(id);
+	}
+
+	/**
+	 * @return a copy of all timers, in registration order
+	 */
+	public MetricsSnapshot snapshot() {
+		MetricsSnapshot snapshot = new MetricsSnapshot();
+		for (int id = 0; id < names.size(); id++)
+			snapshot.add(names.get(id), histograms.get(id).copy());
+		return snapshot;
+	}
+
+	/**
+	 * Removes all recorded latencies, the timers stay registered.
+	 */
+	public void reset() {
+		for (LatencyHistogram histogram : histograms)
+			histogram.reset();
+	}
+}
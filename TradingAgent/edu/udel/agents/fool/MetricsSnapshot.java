@@ -0,0 +1,54 @@
+package edu.udel.agents.fool;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Copy of the timers of a {@link MetricsRegistry} at a point in time.
+ */
+public class MetricsSnapshot {
+
+	private final Map<String, LatencyHistogram> timers = new LinkedHashMap<String, LatencyHistogram>();
+
+	void add(String name, LatencyHistogram histogram) {
+		timers.put(name, histogram);
+	}
+
+	/**
+	 * @return names of the timers, in registration order
+	 */
+	public Set<String> names() {
+		return Collections.unmodifiableSet(timers.keySet());
+	}
+
+	/**
+	 * @param name
+	 * @return the histogram of the timer, or null if there is no such timer
+	 */
+	public LatencyHistogram get(String name) {
+		return timers.get(name);
+	}
+
+	/**
+	 * @return one line per timer with its count and latencies in microseconds
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append(String.format("%-24s %8s %10s %10s %10s %10s %10s%n",
+				"timer", "count", "mean(us)", "p50(us)", "p90(us)", "p99(us)", "max(us)"));
+		for (Map.Entry<String, LatencyHistogram> entry : timers.entrySet()) {
+			LatencyHistogram histogram = entry.getValue();
+			builder.append(String.format("%-24s %8d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+					entry.getKey(), histogram.getCount(),
+					histogram.getMean() / 1000.,
+					histogram.getPercentile(50) / 1000.,
+					histogram.getPercentile(90) / 1000.,
+					histogram.getPercentile(99) / 1000.,
+					histogram.getMax() / 1000.));
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,111 @@
+package edu.udel.agents.fool;
+
+import edu.umich.eecs.tac.props.BidBundle;
+import se.sics.isl.transport.Transportable;
+import se.sics.tasim.aw.Message;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * A {@link FoolAgent} that runs without a server. Messages are handed to it directly
+ * through {@link #deliver(Transportable)} and the bid bundles it sends are kept, in the
+ * order they were sent, until they are collected with {@link #takeBidBundle()}.
+ */
+public class OfflineAgent extends FoolAgent {
+
+	//Address the simulated messages come from
+	static final String SERVER = "server";
+
+	//Bid bundles sent and not collected yet
+	private final Queue<BidBundle> bidBundles = new ArrayDeque<BidBundle>();
+
+	//Number of messages whose processing failed, and the first failure of the game
+	private int errors = 0;
+	private RuntimeException firstError;
+
+	/**
+	 * Processes a message as if it came from the server. Like the agent framework, a
+	 * failure does not stop the game, it is counted and the first one of the game is
+	 * printed. Reports may be processed after this returns, on the report pipeline of
+	 * the agent.
+	 * @param content
+	 */
+	public void deliver(Transportable content) {
+		try {
+			messageReceived(new Message(SERVER, SyntheticMarket.ADVERTISER, content));
+		} catch (RuntimeException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Counts a failure. Called by the delivering thread and by the report pipeline, which
+	 * the game waits for before it reads the count.
+	 */
+	private synchronized void failed(RuntimeException e) {
+		errors++;
+		if (firstError == null) {
+			firstError = e;
+			System.err.println("First failure of the game, day " + simulationDay + ":");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Starts a new simulation.
+	 */
+	public void setup() {
+		synchronized (this) {
+			errors = 0;
+			firstError = null;
+		}
+		bidBundles.clear();
+		simulationSetup();
+	}
+
+	/**
+	 * Ends the simulation.
+	 */
+	public void finish() {
+		simulationFinished();
+	}
+
+	/**
+	 * @return the oldest bid bundle sent and not collected yet, or null if there is none
+	 */
+	public BidBundle takeBidBundle() {
+		return bidBundles.poll();
+	}
+
+	/**
+	 * @return number of messages whose processing failed
+	 */
+	public synchronized int getErrors() {
+		return errors;
+	}
+
+	/**
+	 * @return the first failure of the game, or null if nothing failed
+	 */
+	public synchronized RuntimeException getFirstError() {
+		return firstError;
+	}
+
+	@Override
+	protected void reportFailed(Transportable content, RuntimeException e) {
+		failed(e);
+	}
+
+	@Override
+	protected void refinementFailed(RuntimeException e) {
+		// Caught by the agent so that the day goes on, counted like any other failure
+		failed(e);
+	}
+
+	@Override
+	protected void sendMessage(String receiver, Transportable content) {
+		if (content instanceof BidBundle)
+			bidBundles.add((BidBundle) content);
+	}
+}
@@ -0,0 +1,104 @@
+package edu.udel.agents.fool;
+
+import edu.umich.eecs.tac.props.BidBundle;
+import se.sics.tasim.props.SimulationStatus;
+
+/**
+ * Plays a whole game between an {@link OfflineAgent} and a {@link SyntheticMarket}
+ * without a TAC AA server. The setup messages are delivered first, then every day the
+ * reports of the previous day and the {@link SimulationStatus}, and the bid bundles the
+ * agent answers with are placed in the market in the order they were sent. The market
+ * applies them with the two-day lag of the server. Nothing waits for the game clock, so a
+ * game runs as fast as the agent computes its bids. The reports are processed on the
+ * delivering thread, as the next message is only delivered once the agent is done with
+ * one, so the report pipeline would only add a hand-off per report.
+ * <p>
+ * A message the agent fails to process is counted in the {@link GameResult}. The first
+ * failure of each game is printed, and the run exits with status 1 if any game failed.
+ * <p>
+ * Usage: <code>OfflineSimulation [games [seed [manufacturers components [days]]]]</code>
+ */
+public class OfflineSimulation {
+
+	private final OfflineAgent agent;
+	private final SyntheticMarket market;
+
+	/**
+	 * @param agent agent to play, prepared for a new simulation by the game
+	 * @param market market to play against, used for one game only
+	 */
+	public OfflineSimulation(OfflineAgent agent, SyntheticMarket market) {
+		this.agent = agent;
+		this.market = market;
+	}
+
+	/**
+	 * Plays the game.
+	 * @return the outcome of the game for the agent
+	 */
+	public GameResult run() {
+		long start = System.nanoTime();
+		int bundles = 0;
+		int bids = 0;
+		double bidTotal = 0;
+
+		agent.setup();
+		agent.deliver(market.getStartInfo());
+		agent.deliver(market.getSlotInfo());
+		agent.deliver(market.getRetailCatalog());
+		agent.deliver(market.getAdvertiserInfo());
+		agent.deliver(market.getPublisherInfo());
+
+		for (int day = 0; day < market.getDays(); day++) {
+			if (day > 0) {
+				SyntheticMarket.Reports reports = market.runDay();
+				agent.deliver(reports.getQueryReport());
+				agent.deliver(reports.getSalesReport());
+			}
+			agent.deliver(new SimulationStatus(day, 0));
+
+			for (BidBundle bidBundle = agent.takeBidBundle(); bidBundle != null; bidBundle = agent.takeBidBundle()) {
+				bundles++;
+				for (int i = 0; i < bidBundle.size(); i++) {
+					double bid = bidBundle.getBid(i);
+					if (!Double.isNaN(bid)) {
+						bids++;
+						bidTotal += bid;
+					}
+				}
+				market.placeBids(bidBundle);
+			}
+		}
+		agent.finish();
+
+		return new GameResult(market.getRevenue(), market.getCost(), market.getImpressions(),
+				market.getClicks(), market.getConversions(), bundles, bids, bidTotal,
+				agent.getErrors(), System.nanoTime() - start);
+	}
+
+	public static void main(String[] args) {
+		int games = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+		int manufacturers = args.length > 3 ? Integer.parseInt(args[2]) : 3;
+		int components = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+		int days = args.length > 4 ? Integer.parseInt(args[4]) : 60;
+
+		OfflineAgent agent = new OfflineAgent();
+		agent.decisionLogLevel = DecisionLog.Level.OFF;
+		agent.pipelinedIngestion = false;
+
+		long start = System.nanoTime();
+		int errors = 0;
+		for (int game = 0; game < games; game++) {
+			SyntheticMarket market = new SyntheticMarket(seed + game, manufacturers, components, days);
+			GameResult result = new OfflineSimulation(agent, market).run();
+			errors += result.getErrors();
+			System.out.println("game " + game + "\t" + result);
+		}
+		System.out.format("%d games in %.1f ms%n", games, (System.nanoTime() - start) / 1e6);
+		if (errors > 0) {
+			System.err.println(errors + " messages failed");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,364 @@
+package edu.udel.agents.fool;
+
+import edu.udel.agents.fool.AgentParameters.Parameter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Searches the {@link AgentParameters} of the agent that make the most profit against the
+ * {@link SyntheticMarket}. Candidates are evaluated on the same games, game g being
+ * played against a market seeded with seed + g, so their profits are compared on equal
+ * terms. The games of all the candidates being evaluated are played in parallel on a
+ * fixed thread pool, each thread reusing its own agent.
+ * <p>
+ * Three methods are available:
+ * <ul>
+ * <li>random: candidates drawn uniformly from the range of each searched parameter</li>
+ * <li>grid: every combination of evenly spaced levels of the searched parameters</li>
+ * <li>halving: random candidates evaluated on few games, the better half being kept
+ * and evaluated on twice as many games, until one candidate is left</li>
+ * </ul>
+ * The current configuration of the agent is always the first candidate, and parameters
+ * that are not searched keep its values. Without a list of parameters, random and
+ * halving search every parameter the agent reads in its configuration, leaving out
+ * {@link Parameter#AD_REVENUE_RATIO_PERCENT} unless the budget allocation is on, and
+ * grid searches the three parameters that set the level of the bids, as a grid of all
+ * of them would be far too large. The best candidate is written to a parameters file
+ * that the agent loads at startup, unless a game failed.
+ * <p>
+ * Usage: <code>ParameterSearch random|grid|halving [candidates [games [threads [output [seed [size [days [parameter...]]]]]]]]</code>,
+ * where candidates is the number of levels of each parameter for a grid search, seed the
+ * seed of the market of the first game and of the random candidates, and size the
+ * manufacturers x components of the retail catalog, such as <code>3x3</code>.
+ * <p>
+ * The base configuration is the one the agent loads: the file named by the
+ * <code>fool.parameters</code> system property, else <code>fool.parameters</code> in the
+ * working directory. That is also the default output, so a second run in the same
+ * directory starts from the result of the first. Set the property, or remove the file,
+ * to start from another configuration. The base file is printed when the search starts.
+ */
+public class ParameterSearch {
+
+	/**
+	 * A configuration being evaluated, with the results of the games it played.
+	 */
+	static class Candidate {
+
+		final int id;
+		final AgentParameters parameters;
+		final TournamentStatistics statistics = new TournamentStatistics();
+
+		//Number of games played, games 0 to played - 1
+		int played = 0;
+
+		Candidate(int id, AgentParameters parameters) {
+			this.id = id;
+			this.parameters = parameters;
+		}
+	}
+
+	//Best mean profit first, then first created
+	private static final Comparator<Candidate> BY_PROFIT = new Comparator<Candidate>() {
+		@Override
+		public int compare(Candidate a, Candidate b) {
+			int c = Double.compare(b.statistics.getMeanProfit(), a.statistics.getMeanProfit());
+			return c != 0 ? c : a.id - b.id;
+		}
+	};
+
+	//Parameters of a grid search when none are given: those that set the level of the bids
+	private static final Parameter[] GRID_PARAMETERS = { Parameter.BASE_BID_PER_PRODUCT_REVENUE_PERCENT,
+		Parameter.MAX_BID_FACTOR, Parameter.AGGRESSIVE_BID_PERCENT };
+
+	private final long seed;
+	private final int manufacturers;
+	private final int components;
+	private final int days;
+
+	private final ExecutorService executor;
+
+	//Agent of each thread of the pool
+	private final ThreadLocal<OfflineAgent> agents = new ThreadLocal<OfflineAgent>() {
+		@Override
+		protected OfflineAgent initialValue() {
+			return createAgent();
+		}
+	};
+
+	/**
+	 * Creates the agent of a thread of the pool. A report pipeline would add a thread per
+	 * game on top of the pool, and the knowledge store would make each game depend on the
+	 * games that finished before it on any thread.
+	 * @return
+	 */
+	static OfflineAgent createAgent() {
+		OfflineAgent agent = new OfflineAgent();
+		agent.decisionLogLevel = DecisionLog.Level.OFF;
+		agent.pipelinedIngestion = false;
+		agent.knowledgeFile = null;
+		return agent;
+	}
+
+	/**
+	 * @param agent
+	 * @return the parameters the agent reads in its configuration
+	 */
+	static List<Parameter> activeParameters(FoolAgent agent) {
+		List<Parameter> active = new ArrayList<Parameter>();
+		for (Parameter parameter : Parameter.values())
+			if (parameter != Parameter.AD_REVENUE_RATIO_PERCENT || agent.budgetAllocation)
+				active.add(parameter);
+		return active;
+	}
+
+	/**
+	 * @param threads number of games played at the same time
+	 * @param seed seed of the market of the first game
+	 * @param manufacturers number of manufacturers of the retail catalog
+	 * @param components number of components of the retail catalog
+	 * @param days number of simulation days of a game
+	 */
+	public ParameterSearch(int threads, long seed, int manufacturers, int components, int days) {
+		this.seed = seed;
+		this.manufacturers = manufacturers;
+		this.components = components;
+		this.days = days;
+		this.executor = Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * Stops the threads of the search.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Evaluates random candidates on the same number of games.
+	 * @param base configuration of the first candidate and of the parameters not searched
+	 * @param searched parameters to vary
+	 * @param candidates number of candidates, including the base
+	 * @param games number of games of each candidate
+	 * @param random
+	 * @return the candidates, best first
+	 * @throws InterruptedException
+	 */
+	List<Candidate> randomSearch(AgentParameters base, List<Parameter> searched, int candidates, int games,
+			Random random) throws InterruptedException {
+		List<Candidate> all = sample(base, searched, candidates, random);
+		evaluate(all, games);
+		Collections.sort(all, BY_PROFIT);
+		return all;
+	}
+
+	/**
+	 * Evaluates every combination of evenly spaced levels of the searched parameters.
+	 * @param base configuration of the first candidate and of the parameters not searched
+	 * @param searched parameters to vary
+	 * @param levels number of levels of each parameter, at least 2
+	 * @param games number of games of each candidate
+	 * @return the candidates, best first
+	 * @throws InterruptedException
+	 */
+	List<Candidate> gridSearch(AgentParameters base, List<Parameter> searched, int levels, int games)
+			throws InterruptedException {
+		if (levels < 2)
+			throw new IllegalArgumentException("a grid needs at least 2 levels: " + levels);
+		double size = Math.pow(levels, searched.size());
+		if (size > 100000)
+			throw new IllegalArgumentException("grid of " + (long) size + " candidates, search fewer parameters");
+
+		List<AgentParameters> grid = new ArrayList<AgentParameters>();
+		grid.add(base);
+		for (Parameter parameter : searched) {
+			List<AgentParameters> next = new ArrayList<AgentParameters>(grid.size() * levels);
+			for (AgentParameters parameters : grid)
+				for (int level = 0; level < levels; level++)
+					next.add(parameters.with(parameter, parameter.getMin()
+							+ level * (parameter.getMax() - parameter.getMin()) / (levels - 1)));
+			grid = next;
+		}
+
+		List<Candidate> all = new ArrayList<Candidate>(grid.size() + 1);
+		all.add(new Candidate(0, base));
+		for (AgentParameters parameters : grid)
+			all.add(new Candidate(all.size(), parameters));
+		evaluate(all, games);
+		Collections.sort(all, BY_PROFIT);
+		return all;
+	}
+
+	/**
+	 * Successive halving: all candidates play a few games, the worse half is dropped and
+	 * the rest play twice as many games, until one candidate is left. The winner is then
+	 * evaluated on all the games.
+	 * @param base configuration of the first candidate and of the parameters not searched
+	 * @param searched parameters to vary
+	 * @param candidates number of candidates, including the base
+	 * @param games number of games of the last candidates
+	 * @param random
+	 * @return the candidates, best first, ranked on the games they played
+	 * @throws InterruptedException
+	 */
+	List<Candidate> successiveHalving(AgentParameters base, List<Parameter> searched, int candidates, int games,
+			Random random) throws InterruptedException {
+		List<Candidate> all = sample(base, searched, candidates, random);
+		int rounds = 32 - Integer.numberOfLeadingZeros(Math.max(1, all.size() - 1));
+		int budget = Math.max(1, games >> rounds);
+
+		List<Candidate> alive = new ArrayList<Candidate>(all);
+		while (true) {
+			evaluate(alive, budget);
+			Collections.sort(alive, BY_PROFIT);
+			if (alive.size() == 1)
+				break;
+			alive = new ArrayList<Candidate>(alive.subList(0, (alive.size() + 1) / 2));
+			budget = Math.min(games, 2 * budget);
+		}
+		evaluate(alive, games);
+
+		// Candidates that played more games rank above those dropped earlier
+		Collections.sort(all, new Comparator<Candidate>() {
+			@Override
+			public int compare(Candidate a, Candidate b) {
+				return a.played != b.played ? b.played - a.played : BY_PROFIT.compare(a, b);
+			}
+		});
+		return all;
+	}
+
+	private static List<Candidate> sample(AgentParameters base, List<Parameter> searched, int candidates,
+			Random random) {
+		List<Candidate> all = new ArrayList<Candidate>(candidates);
+		all.add(new Candidate(0, base));
+		while (all.size() < candidates) {
+			AgentParameters parameters = base;
+			for (Parameter parameter : searched)
+				parameters = parameters.with(parameter, parameter.getMin()
+						+ random.nextDouble() * (parameter.getMax() - parameter.getMin()));
+			all.add(new Candidate(all.size(), parameters));
+		}
+		return all;
+	}
+
+	/**
+	 * Plays the games the candidates have not played yet, up to a number of games.
+	 * @param candidates
+	 * @param games
+	 * @throws InterruptedException
+	 */
+	void evaluate(List<Candidate> candidates, int games) throws InterruptedException {
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (final Candidate candidate : candidates) {
+			for (int game = candidate.played; game < games; game++) {
+				final long gameSeed = seed + game;
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						OfflineAgent agent = agents.get();
+						agent.parameters = candidate.parameters;
+						SyntheticMarket market = new SyntheticMarket(gameSeed, manufacturers, components, days);
+						candidate.statistics.add(new OfflineSimulation(agent, market).run());
+						return null;
+					}
+				}));
+			}
+		}
+		try {
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException)
+						throw (RuntimeException) cause;
+					if (cause instanceof Error)
+						throw (Error) cause;
+					throw new IllegalStateException(cause);
+				}
+			}
+		} finally {
+			for (Future<Void> future : futures)
+				future.cancel(true);
+		}
+		for (Candidate candidate : candidates)
+			candidate.played = Math.max(candidate.played, games);
+	}
+
+	public static void main(String[] args) throws InterruptedException, IOException {
+		String method = args.length > 0 ? args[0] : "halving";
+		int candidates = args.length > 1 ? Integer.parseInt(args[1]) : "grid".equals(method) ? 3 : 32;
+		int games = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+		String output = args.length > 4 ? args[4] : AgentParameters.DEFAULT_FILE;
+		long seed = args.length > 5 ? Long.parseLong(args[5]) : 1;
+		String[] size = (args.length > 6 ? args[6] : "3x3").split("x");
+		int manufacturers = Integer.parseInt(size[0]);
+		int components = Integer.parseInt(size[1]);
+		int days = args.length > 7 ? Integer.parseInt(args[7]) : 60;
+
+		List<Parameter> searched = new ArrayList<Parameter>();
+		for (int i = 8; i < args.length; i++) {
+			Parameter parameter = Parameter.forKey(args[i]);
+			if (parameter == null)
+				throw new IllegalArgumentException("Unknown parameter " + args[i]);
+			searched.add(parameter);
+		}
+		if (searched.isEmpty()) {
+			if ("grid".equals(method))
+				Collections.addAll(searched, GRID_PARAMETERS);
+			else
+				searched.addAll(activeParameters(createAgent()));
+		}
+
+		String baseFile = AgentParameters.configuredFile();
+		AgentParameters base = AgentParameters.loadConfigured();
+		System.out.println("Base parameters: " + (baseFile != null ? baseFile : "defaults"));
+		Random random = new Random(seed);
+		ParameterSearch search = new ParameterSearch(threads, seed, manufacturers, components, days);
+		long start = System.nanoTime();
+		List<Candidate> ranking;
+		try {
+			if ("random".equals(method))
+				ranking = search.randomSearch(base, searched, candidates, games, random);
+			else if ("grid".equals(method))
+				ranking = search.gridSearch(base, searched, candidates, games);
+			else if ("halving".equals(method))
+				ranking = search.successiveHalving(base, searched, candidates, games, random);
+			else
+				throw new IllegalArgumentException("Unknown search method " + method);
+		} finally {
+			search.shutdown();
+		}
+
+		int played = 0;
+		for (Candidate candidate : ranking)
+			played += candidate.played;
+		for (int i = 0; i < Math.min(10, ranking.size()); i++) {
+			Candidate candidate = ranking.get(i);
+			System.out.format("%2d candidate %d, %d games: %s%n    %s%n", i + 1, candidate.id, candidate.played,
+					candidate.statistics, candidate.parameters);
+		}
+		System.out.format("%d candidates, %d games in %.1f s%n", ranking.size(), played,
+				(System.nanoTime() - start) / 1e9);
+
+		Candidate best = ranking.get(0);
+		if (best.statistics.getErrors() > 0) {
+			System.err.println(best.statistics.getErrors() + " messages failed, " + output + " not written");
+			System.exit(1);
+		}
+		best.parameters.save(output, String.format("%s search, mean profit %.2f over %d games, seed %d, %dx%d catalog, %d days",
+				method, best.statistics.getMeanProfit(), best.played, seed, manufacturers, components, days));
+		System.out.println("Best parameters written to " + output);
+	}
+}
@@ -0,0 +1,313 @@
+package edu.udel.agents.fool;
+
+import edu.umich.eecs.tac.props.Query;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Structure of the query space, addressed by slot. Manufacturers and components are
+ * given int ids, and the F0 query, the F1 queries and the F2 queries are linked through
+ * compressed adjacency arrays: the F2 queries of manufacturer m are the slots
+ * <code>manufacturerChildren[manufacturerOffsets[m]]</code> to
+ * <code>manufacturerChildren[manufacturerOffsets[m + 1] - 1]</code>, and likewise for
+ * components. The parents and siblings of a query are found in constant time, and the
+ * index takes space linear in the query space whatever the size of the catalog.
+ * <p>
+ * Within each group, queries are in slot order.
+ */
+public class QueryIndex {
+
+	//Id of each manufacturer and component name
+	private final Map<String, Integer> manufacturerIds = new HashMap<String, Integer>();
+	private final Map<String, Integer> componentIds = new HashMap<String, Integer>();
+
+	//Slots of the whole query space
+	private int[] allSlots = new int[0];
+
+	//Slot of the F0 query, -1 if there is none
+	private int f0Slot = -1;
+
+	//Slots of the F1 queries, the children of the F0 query
+	private int[] f1Slots = new int[0];
+
+	//Slot of the F1 query of each manufacturer and component, -1 if there is none
+	private int[] manufacturerSlot = new int[0];
+	private int[] componentSlot = new int[0];
+
+	//F2 queries of each manufacturer and component
+	private int[] manufacturerOffsets = { 0 };
+	private int[] manufacturerChildren = new int[0];
+	private int[] componentOffsets = { 0 };
+	private int[] componentChildren = new int[0];
+
+	//Manufacturer and component of each slot, -1 if the query has none
+	private int[] manufacturerOf = new int[0];
+	private int[] componentOf = new int[0];
+
+	//Open addressing table from the manufacturer and component ids of an F2 query to its slot
+	private long[] pairKeys = { -1 };
+	private int[] pairSlots = new int[1];
+
+	/**
+	 * Indexes the queries of a table. This is done once per retail catalog.
+	 * @param queryState
+	 */
+	public void build(QueryStateTable queryState) {
+		int slots = queryState.size();
+		manufacturerIds.clear();
+		componentIds.clear();
+		allSlots = new int[slots];
+		manufacturerOf = new int[slots];
+		componentOf = new int[slots];
+		f0Slot = -1;
+
+		int f1Count = 0;
+		for (int slot = 0; slot < slots; slot++) {
+			Query query = queryState.query(slot);
+			allSlots[slot] = slot;
+			manufacturerOf[slot] = id(manufacturerIds, query.getManufacturer());
+			componentOf[slot] = id(componentIds, query.getComponent());
+			if (manufacturerOf[slot] < 0 && componentOf[slot] < 0)
+				f0Slot = slot;
+			else if (manufacturerOf[slot] < 0 || componentOf[slot] < 0)
+				f1Count++;
+		}
+
+		int manufacturers = manufacturerIds.size();
+		int components = componentIds.size();
+		manufacturerSlot = filled(manufacturers, -1);
+		componentSlot = filled(components, -1);
+		manufacturerOffsets = new int[manufacturers + 1];
+		componentOffsets = new int[components + 1];
+		f1Slots = new int[f1Count];
+
+		// Counts the F2 queries of each group, then places them in slot order
+		f1Count = 0;
+		for (int slot = 0; slot < slots; slot++) {
+			int m = manufacturerOf[slot];
+			int c = componentOf[slot];
+			if (m >= 0 && c >= 0) {
+				manufacturerOffsets[m + 1]++;
+				componentOffsets[c + 1]++;
+			} else if (m >= 0) {
+				manufacturerSlot[m] = slot;
+				f1Slots[f1Count++] = slot;
+			} else if (c >= 0) {
+				componentSlot[c] = slot;
+				f1Slots[f1Count++] = slot;
+			}
+		}
+		for (int m = 0; m < manufacturers; m++)
+			manufacturerOffsets[m + 1] += manufacturerOffsets[m];
+		for (int c = 0; c < components; c++)
+			componentOffsets[c + 1] += componentOffsets[c];
+
+		manufacturerChildren = new int[manufacturerOffsets[manufacturers]];
+		componentChildren = new int[componentOffsets[components]];
+		int[] manufacturerFill = manufacturerOffsets.clone();
+		int[] componentFill = componentOffsets.clone();
+		// At most half full, so that probes stay short
+		int tableSize = Integer.highestOneBit(Math.max(1, manufacturerChildren.length)) << 2;
+		pairKeys = filled(tableSize, -1L);
+		pairSlots = new int[tableSize];
+		for (int slot = 0; slot < slots; slot++) {
+			int m = manufacturerOf[slot];
+			int c = componentOf[slot];
+			if (m >= 0 && c >= 0) {
+				manufacturerChildren[manufacturerFill[m]++] = slot;
+				componentChildren[componentFill[c]++] = slot;
+				int i = probe(pair(m, c));
+				pairKeys[i] = pair(m, c);
+				pairSlots[i] = slot;
+			}
+		}
+	}
+
+	private static long pair(int manufacturer, int component) {
+		return ((long) manufacturer << 32) | component;
+	}
+
+	//Position of a key in the pair table, or of the empty entry where it would go
+	private int probe(long key) {
+		int mask = pairKeys.length - 1;
+		int i = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+		while (pairKeys[i] != key && pairKeys[i] != -1)
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	private static int id(Map<String, Integer> ids, String name) {
+		if (name == null)
+			return -1;
+		Integer id = ids.get(name);
+		if (id == null) {
+			id = ids.size();
+			ids.put(name, id);
+		}
+		return id;
+	}
+
+	private static int[] filled(int length, int value) {
+		int[] array = new int[length];
+		Arrays.fill(array, value);
+		return array;
+	}
+
+	private static long[] filled(int length, long value) {
+		long[] array = new long[length];
+		Arrays.fill(array, value);
+		return array;
+	}
+
+	/**
+	 * Finds the slot of a query from its manufacturer and component names. Unlike a
+	 * lookup by {@link Query}, whose hash codes collide for large catalogs, this takes
+	 * two string lookups and a short probe.
+	 * @param query
+	 * @return slot of the query, or -1 if it is not part of the query space
+	 */
+	public int slot(Query query) {
+		return slot(query.getManufacturer(), query.getComponent());
+	}
+
+	/**
+	 * @param manufacturer manufacturer of the query, or null
+	 * @param component component of the query, or null
+	 * @return slot of the query, or -1 if it is not part of the query space
+	 */
+	public int slot(String manufacturer, String component) {
+		int m = manufacturerId(manufacturer);
+		int c = componentId(component);
+		if ((m < 0 && manufacturer != null) || (c < 0 && component != null))
+			return -1;
+		if (m < 0 && c < 0)
+			return f0Slot;
+		if (c < 0)
+			return manufacturerSlot[m];
+		if (m < 0)
+			return componentSlot[c];
+		int i = probe(pair(m, c));
+		return pairKeys[i] == -1 ? -1 : pairSlots[i];
+	}
+
+	/**
+	 * @return slots of the whole query space
+	 */
+	public int[] getAllSlots() {
+		return allSlots;
+	}
+
+	public int getManufacturerCount() {
+		return manufacturerIds.size();
+	}
+
+	public int getComponentCount() {
+		return componentIds.size();
+	}
+
+	/**
+	 * @param manufacturer
+	 * @return id of the manufacturer, or -1 if it is not part of the query space
+	 */
+	public int manufacturerId(String manufacturer) {
+		Integer id = manufacturer == null ? null : manufacturerIds.get(manufacturer);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * @param component
+	 * @return id of the component, or -1 if it is not part of the query space
+	 */
+	public int componentId(String component) {
+		Integer id = component == null ? null : componentIds.get(component);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * @param slot
+	 * @return manufacturer id of the query, -1 if it has no manufacturer
+	 */
+	public int manufacturerOf(int slot) {
+		return manufacturerOf[slot];
+	}
+
+	/**
+	 * @param slot
+	 * @return component id of the query, -1 if it has no component
+	 */
+	public int componentOf(int slot) {
+		return componentOf[slot];
+	}
+
+	/**
+	 * @param slot
+	 * @return 0 for F0, 1 for F1, 2 for F2
+	 */
+	public int typeOf(int slot) {
+		return (manufacturerOf[slot] >= 0 ? 1 : 0) + (componentOf[slot] >= 0 ? 1 : 0);
+	}
+
+	/**
+	 * @return slot of the F0 query, -1 if there is none
+	 */
+	public int getF0Slot() {
+		return f0Slot;
+	}
+
+	/**
+	 * @return slots of the F1 queries
+	 */
+	public int[] getF1Slots() {
+		return f1Slots;
+	}
+
+	/**
+	 * @param manufacturer manufacturer id
+	 * @return slot of the F1 query of the manufacturer, -1 if there is none
+	 */
+	public int manufacturerSlot(int manufacturer) {
+		return manufacturerSlot[manufacturer];
+	}
+
+	/**
+	 * @param component component id
+	 * @return slot of the F1 query of the component, -1 if there is none
+	 */
+	public int componentSlot(int component) {
+		return componentSlot[component];
+	}
+
+	/**
+	 * Offsets of the F2 queries of each manufacturer in {@link #getManufacturerChildren()},
+	 * one more than the number of manufacturers.
+	 * @return
+	 */
+	public int[] getManufacturerOffsets() {
+		return manufacturerOffsets;
+	}
+
+	/**
+	 * @return slots of the F2 queries, grouped by manufacturer
+	 */
+	public int[] getManufacturerChildren() {
+		return manufacturerChildren;
+	}
+
+	/**
+	 * Offsets of the F2 queries of each component in {@link #getComponentChildren()},
+	 * one more than the number of components.
+	 * @return
+	 */
+	public int[] getComponentOffsets() {
+		return componentOffsets;
+	}
+
+	/**
+	 * @return slots of the F2 queries, grouped by component
+	 */
+	public int[] getComponentChildren() {
+		return componentChildren;
+	}
+}
@@ -0,0 +1,246 @@
+package edu.udel.agents.fool;
+
+import java.util.Arrays;
+
+/**
+ * Online estimates of the click and conversion behaviour of every query, addressed by
+ * slot. Each report updates the estimates of a query in constant time, the history is
+ * never refitted.
+ * <p>
+ * The click rate, conversion rate and value per conversion are ratios of exponentially
+ * decayed totals, so recent days weigh more than the priors and the early days. Their
+ * variance is that of a beta posterior whose sample size is the decayed total.
+ * <p>
+ * The daily conversions are also fitted against the bid and the position of the query by
+ * recursive least squares with a forgetting factor. The weights and the inverse
+ * covariance of each query are kept in flat columns, {@link #FEATURES} and
+ * {@link #FEATURES} squared values per slot.
+ */
+public class QueryModels {
+
+	//Features of the conversion fit: constant, bid and position
+	static final int FEATURES = 3;
+
+	//Initial inverse covariance of the conversion fit, large as the weights are unknown
+	private static final double INITIAL_COVARIANCE = 1000;
+
+	//Weight kept by the past each time a report is added
+	private final double decay;
+
+	//Forgetting factor of the conversion fit
+	private final double forgetting;
+
+	private int size = 0;
+
+	//Decayed totals of each query
+	double[] impressions = new double[0];
+	double[] clicks = new double[0];
+	double[] conversions = new double[0];
+	double[] values = new double[0];
+
+	//Bid and position of each query in the last query report, NaN if it was not shown
+	double[] reportBid = new double[0];
+	double[] reportPosition = new double[0];
+
+	//Weights and inverse covariance of the conversion fit of each query
+	double[] weights = new double[0];
+	double[] covariance = new double[0];
+
+	//Work space of a fit update
+	private final double[] features = new double[FEATURES];
+	private final double[] gain = new double[FEATURES];
+
+	/**
+	 * @param decay weight kept by the past days when a day is added, between 0 and 1
+	 * @param forgetting forgetting factor of the conversion fit, between 0 and 1
+	 */
+	public QueryModels(double decay, double forgetting) {
+		this.decay = decay;
+		this.forgetting = forgetting;
+	}
+
+	/**
+	 * Prepares the models of a query space. Nothing is known about any query.
+	 * @param slots number of query slots
+	 */
+	public void setup(int slots) {
+		if (impressions.length < slots) {
+			impressions = new double[slots];
+			clicks = new double[slots];
+			conversions = new double[slots];
+			values = new double[slots];
+			reportBid = new double[slots];
+			reportPosition = new double[slots];
+			weights = new double[slots * FEATURES];
+			covariance = new double[slots * FEATURES * FEATURES];
+		}
+		size = slots;
+		Arrays.fill(impressions, 0, slots, 0);
+		Arrays.fill(clicks, 0, slots, 0);
+		Arrays.fill(conversions, 0, slots, 0);
+		Arrays.fill(values, 0, slots, 0);
+		Arrays.fill(reportBid, 0, slots, Double.NaN);
+		Arrays.fill(reportPosition, 0, slots, Double.NaN);
+		Arrays.fill(weights, 0, slots * FEATURES, 0);
+		Arrays.fill(covariance, 0, slots * FEATURES * FEATURES, 0);
+		for (int slot = 0; slot < slots; slot++)
+			for (int i = 0; i < FEATURES; i++)
+				covariance[slot * FEATURES * FEATURES + i * FEATURES + i] = INITIAL_COVARIANCE;
+	}
+
+	/**
+	 * @return number of query slots
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Sets the prior totals of a query, as if they had been reported.
+	 * @param slot
+	 * @param impressions
+	 * @param clicks
+	 * @param conversions
+	 * @param values
+	 */
+	public void seed(int slot, double impressions, double clicks, double conversions, double values) {
+		this.impressions[slot] = impressions;
+		this.clicks[slot] = clicks;
+		this.conversions[slot] = conversions;
+		this.values[slot] = values;
+	}
+
+	/**
+	 * Adds the query report of a day.
+	 * @param slot
+	 * @param impressions
+	 * @param clicks
+	 * @param bid bid in effect for the query on the reported day, sent the day before it,
+	 * NaN if none was sent
+	 * @param position average position of the agent, NaN if it was not shown
+	 */
+	public void observeQuery(int slot, double impressions, double clicks, double bid, double position) {
+		this.impressions[slot] = decay * this.impressions[slot] + impressions;
+		this.clicks[slot] = decay * this.clicks[slot] + clicks;
+		reportBid[slot] = bid;
+		reportPosition[slot] = position;
+	}
+
+	/**
+	 * Adds the sales report of a day. The conversions are added to the fit along with the
+	 * bid and position of the last query report, unless the query was not shown.
+	 * @param slot
+	 * @param conversions
+	 * @param revenue
+	 */
+	public void observeSales(int slot, double conversions, double revenue) {
+		this.conversions[slot] = decay * this.conversions[slot] + conversions;
+		values[slot] = decay * values[slot] + revenue;
+		if (!Double.isNaN(reportBid[slot]) && !Double.isNaN(reportPosition[slot]))
+			fit(slot, reportBid[slot], reportPosition[slot], conversions);
+	}
+
+	/**
+	 * Adds an observation to the conversion fit of a query.
+	 */
+	private void fit(int slot, double bid, double position, double conversions) {
+		features[0] = 1;
+		features[1] = bid;
+		features[2] = position;
+		int w = slot * FEATURES;
+		int p = slot * FEATURES * FEATURES;
+
+		// gain = P x / (forgetting + x' P x)
+		double denominator = forgetting;
+		double error = conversions;
+		for (int i = 0; i < FEATURES; i++) {
+			double sum = 0;
+			for (int j = 0; j < FEATURES; j++)
+				sum += covariance[p + i * FEATURES + j] * features[j];
+			gain[i] = sum;
+			denominator += features[i] * sum;
+			error -= weights[w + i] * features[i];
+		}
+		for (int i = 0; i < FEATURES; i++)
+			gain[i] /= denominator;
+
+		// w += gain * error, P = (P - gain x' P) / forgetting, where x' P = (P x)' as P is symmetric
+		for (int i = 0; i < FEATURES; i++)
+			weights[w + i] += gain[i] * error;
+		for (int i = 0; i < FEATURES; i++) {
+			double px = gain[i] * denominator;
+			for (int j = 0; j < FEATURES; j++)
+				covariance[p + i * FEATURES + j] = (covariance[p + i * FEATURES + j] - gain[j] * px)
+						/ forgetting;
+		}
+	}
+
+	/**
+	 * @param slot
+	 * @return estimated probability that an impression of the query is clicked
+	 */
+	public double clickRate(int slot) {
+		return rate(clicks[slot], impressions[slot]);
+	}
+
+	/**
+	 * @param slot
+	 * @return variance of the click rate estimate
+	 */
+	public double clickRateVariance(int slot) {
+		return rateVariance(clicks[slot], impressions[slot]);
+	}
+
+	/**
+	 * @param slot
+	 * @return estimated probability that a click on the query converts
+	 */
+	public double conversionRate(int slot) {
+		return rate(conversions[slot], clicks[slot]);
+	}
+
+	/**
+	 * @param slot
+	 * @return variance of the conversion rate estimate
+	 */
+	public double conversionRateVariance(int slot) {
+		return rateVariance(conversions[slot], clicks[slot]);
+	}
+
+	/**
+	 * @param slot
+	 * @return estimated revenue of a conversion of the query, 0 if it never converted
+	 */
+	public double valuePerConversion(int slot) {
+		return conversions[slot] > 0 ? values[slot] / conversions[slot] : 0;
+	}
+
+	/**
+	 * This is the most a bid optimizer should pay for a click on the query.
+	 * @param slot
+	 * @return expected revenue of a click on the query
+	 */
+	public double expectedValuePerClick(int slot) {
+		return conversionRate(slot) * valuePerConversion(slot);
+	}
+
+	/**
+	 * @param slot
+	 * @param bid
+	 * @param position
+	 * @return daily conversions predicted by the fit for a bid and a position
+	 */
+	public double predictConversions(int slot, double bid, double position) {
+		int w = slot * FEATURES;
+		return weights[w] + weights[w + 1] * bid + weights[w + 2] * position;
+	}
+
+	private static double rate(double successes, double trials) {
+		return trials > 0 ? Math.min(1, successes / trials) : 0;
+	}
+
+	private static double rateVariance(double successes, double trials) {
+		double rate = rate(successes, trials);
+		return rate * (1 - rate) / (trials + 1);
+	}
+}
@@ -0,0 +1,151 @@
+package edu.udel.agents.fool;
+
+import edu.umich.eecs.tac.props.Ad;
+import edu.umich.eecs.tac.props.Query;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Dense per-query state for the agent. Every {@link Query} of the query space is given a
+ * stable int slot when the retail catalog is processed, and the per-query metrics are kept
+ * in parallel primitive columns indexed by that slot. The daily cycle then only works
+ * with slot numbers and never boxes values or hashes queries. The slot of a query is
+ * looked up through the {@link QueryIndex} built from the table.
+ */
+public class QueryStateTable {
+
+	//Query stored in each slot
+	private Query[] queries = new Query[0];
+
+	//Number of slots in use
+	private int size = 0;
+
+	//Cumulative statistics for each query
+	double[] impressions = new double[0];
+	double[] clicks = new double[0];
+	double[] conversions = new double[0];
+	double[] values = new double[0];
+
+	//Part of the cumulative statistics that comes from the prior of each query
+	double[] priorImpressions = new double[0];
+	double[] priorClicks = new double[0];
+	double[] priorConversions = new double[0];
+	double[] priorValues = new double[0];
+
+	//Canonical ad of each query, null if it depends on the rankings
+	Ad[] queryAd = new Ad[0];
+
+	//Entry of each query in the last query report, -1 if it is not in the report
+	int[] reportEntry = new int[0];
+
+	//Minimum bids for each query
+	double[] baseBid = new double[0];
+
+	//Maximum bids for each query
+	double[] maxBid = new double[0];
+
+	//Spike status of each query
+	final BitSet spikeDetect = new BitSet();
+	final BitSet spikeDetectPreviousDay = new BitSet();
+
+	//Daily impressions of each query, limited to the last historyDays days
+	DoubleRingBuffer[] impressionHistory = new DoubleRingBuffer[0];
+
+	//Number of days kept in each impression history
+	private final int historyDays;
+
+	/**
+	 * @param historyDays number of days of impressions kept for each query
+	 */
+	public QueryStateTable(int historyDays) {
+		this.historyDays = historyDays;
+	}
+
+	/**
+	 * Adds a query to the table. Each query of the query space is added once.
+	 * @param query
+	 * @return the slot of the query
+	 */
+	public int add(Query query) {
+		if (size == queries.length)
+			grow(Math.max(16, size * 2));
+
+		queries[size] = query;
+		reportEntry[size] = -1;
+		if (impressionHistory[size] == null)
+			impressionHistory[size] = new DoubleRingBuffer(historyDays);
+		return size++;
+	}
+
+	/**
+	 * Sets the statistics of a query before any report, and remembers them as its prior.
+	 * @param slot
+	 * @param impressions
+	 * @param clicks
+	 * @param conversions
+	 * @param values
+	 */
+	public void seed(int slot, double impressions, double clicks, double conversions, double values) {
+		this.impressions[slot] = priorImpressions[slot] = impressions;
+		this.clicks[slot] = priorClicks[slot] = clicks;
+		this.conversions[slot] = priorConversions[slot] = conversions;
+		this.values[slot] = priorValues[slot] = values;
+	}
+
+	/**
+	 * This returns the query stored in a certain slot
+	 * @param slot
+	 * @return
+	 */
+	public Query query(int slot) {
+		return queries[slot];
+	}
+
+	/**
+	 * @return number of queries in the table
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Removes all queries and their state.
+	 */
+	public void clear() {
+		Arrays.fill(queries, 0, size, null);
+		Arrays.fill(queryAd, 0, size, null);
+		Arrays.fill(impressions, 0);
+		Arrays.fill(clicks, 0);
+		Arrays.fill(conversions, 0);
+		Arrays.fill(values, 0);
+		Arrays.fill(priorImpressions, 0);
+		Arrays.fill(priorClicks, 0);
+		Arrays.fill(priorConversions, 0);
+		Arrays.fill(priorValues, 0);
+		Arrays.fill(baseBid, 0);
+		Arrays.fill(maxBid, 0);
+		spikeDetect.clear();
+		spikeDetectPreviousDay.clear();
+		for (int slot = 0; slot < size; slot++)
+			impressionHistory[slot].clear();
+		size = 0;
+	}
+
+	private void grow(int capacity) {
+		queries = Arrays.copyOf(queries, capacity);
+		queryAd = Arrays.copyOf(queryAd, capacity);
+		reportEntry = Arrays.copyOf(reportEntry, capacity);
+		impressions = Arrays.copyOf(impressions, capacity);
+		clicks = Arrays.copyOf(clicks, capacity);
+		conversions = Arrays.copyOf(conversions, capacity);
+		values = Arrays.copyOf(values, capacity);
+		priorImpressions = Arrays.copyOf(priorImpressions, capacity);
+		priorClicks = Arrays.copyOf(priorClicks, capacity);
+		priorConversions = Arrays.copyOf(priorConversions, capacity);
+		priorValues = Arrays.copyOf(priorValues, capacity);
+		baseBid = Arrays.copyOf(baseBid, capacity);
+		maxBid = Arrays.copyOf(maxBid, capacity);
+		impressionHistory = Arrays.copyOf(impressionHistory, capacity);
+	}
+}
@@ -0,0 +1,136 @@
+package edu.udel.agents.fool;
+
+import java.util.Arrays;
+
+/**
+ * Popularity ranking of every query, within the whole query space and within the group
+ * of F2 queries sharing its component or its manufacturer. A query's rank is the number
+ * of queries of the group with more impressions plus the number with more value,
+ * divided by twice the size of the group: 0 for the most popular query and close to 1
+ * for the least popular one.
+ * <p>
+ * The index is rebuilt once per day after the reports have been processed. Each group is
+ * sorted once, and the rank of each member is then found by binary search, so a rebuild
+ * costs O(n log n) and looking up a rank costs O(1).
+ */
+public class RankIndex {
+
+	//Slots of the whole query space
+	private int[] allQueries = new int[0];
+
+	//Slots of the F2 queries sharing a component, and sharing a manufacturer, as
+	//adjacency arrays of the QueryIndex
+	private int[] componentOffsets = { 0 };
+	private int[] componentGroups = new int[0];
+	private int[] manufacturerOffsets = { 0 };
+	private int[] manufacturerGroups = new int[0];
+
+	//Rank of each slot within each kind of group
+	private double[] rankInQuerySpace = new double[0];
+	private double[] rankInComponent = new double[0];
+	private double[] rankInManufacturer = new double[0];
+
+	//Sorted impressions and values of the group being ranked
+	private double[] sortedImpressions = new double[0];
+	private double[] sortedValues = new double[0];
+
+	/**
+	 * Sets the groups of queries to rank. This is done once per retail catalog.
+	 * @param index structure of the query space
+	 */
+	public void setup(QueryIndex index) {
+		this.allQueries = index.getAllSlots();
+		this.componentOffsets = index.getComponentOffsets();
+		this.componentGroups = index.getComponentChildren();
+		this.manufacturerOffsets = index.getManufacturerOffsets();
+		this.manufacturerGroups = index.getManufacturerChildren();
+
+		int slots = 0;
+		for (int slot : allQueries)
+			slots = Math.max(slots, slot + 1);
+		rankInQuerySpace = new double[slots];
+		rankInComponent = new double[slots];
+		rankInManufacturer = new double[slots];
+		sortedImpressions = new double[allQueries.length];
+		sortedValues = new double[allQueries.length];
+	}
+
+	/**
+	 * Recomputes the ranks of all queries.
+	 * @param impressions impressions of each slot
+	 * @param values value of each slot
+	 */
+	public void rebuild(double[] impressions, double[] values) {
+		rank(allQueries, 0, allQueries.length, impressions, values, rankInQuerySpace);
+		for (int c = 0; c + 1 < componentOffsets.length; c++)
+			rank(componentGroups, componentOffsets[c], componentOffsets[c + 1], impressions, values, rankInComponent);
+		for (int m = 0; m + 1 < manufacturerOffsets.length; m++)
+			rank(manufacturerGroups, manufacturerOffsets[m], manufacturerOffsets[m + 1], impressions, values,
+					rankInManufacturer);
+	}
+
+	/**
+	 * @param slot
+	 * @return rank of the query within the whole query space
+	 */
+	public double rankInQuerySpace(int slot) {
+		return rankInQuerySpace[slot];
+	}
+
+	/**
+	 * @return rank of each slot within the whole query space
+	 */
+	public double[] getRanksInQuerySpace() {
+		return rankInQuerySpace;
+	}
+
+	/**
+	 * @param slot slot of an F2 query
+	 * @return rank of the query among the F2 queries with the same component
+	 */
+	public double rankInComponent(int slot) {
+		return rankInComponent[slot];
+	}
+
+	/**
+	 * @param slot slot of an F2 query
+	 * @return rank of the query among the F2 queries with the same manufacturer
+	 */
+	public double rankInManufacturer(int slot) {
+		return rankInManufacturer[slot];
+	}
+
+	private void rank(int[] slots, int from, int to, double[] impressions, double[] values, double[] ranks) {
+		int n = to - from;
+		for (int i = 0; i < n; i++) {
+			sortedImpressions[i] = impressions[slots[from + i]];
+			sortedValues[i] = values[slots[from + i]];
+		}
+		Arrays.sort(sortedImpressions, 0, n);
+		Arrays.sort(sortedValues, 0, n);
+
+		double totalRank = 2. * n;
+		for (int i = from; i < to; i++) {
+			int slot = slots[i];
+			int rank = countGreater(sortedImpressions, n, impressions[slot])
+					+ countGreater(sortedValues, n, values[slot]);
+			ranks[slot] = rank / totalRank;
+		}
+	}
+
+	/**
+	 * This returns the number of sorted values strictly greater than a key
+	 */
+	private static int countGreater(double[] sorted, int n, double key) {
+		int low = 0;
+		int high = n;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (sorted[middle] > key)
+				high = middle;
+			else
+				low = middle + 1;
+		}
+		return n - low;
+	}
+}
@@ -0,0 +1,161 @@
+package edu.udel.agents.fool;
+
+import se.sics.isl.transport.Transportable;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Processes messages on a worker thread, in the order they were submitted. Messages are
+ * handed over through a ring buffer with a single producer, the thread delivering the
+ * agent's messages, and a single consumer, the worker. {@link #await()} returns once
+ * every submitted message has been processed, and everything the worker wrote while
+ * processing them is then visible to the caller.
+ * <p>
+ * Unlike the {@link DecisionLog}, messages are never dropped: a producer that finds the
+ * buffer full waits for the worker.
+ */
+public class ReportPipeline {
+
+	/**
+	 * Processes the messages on the worker thread.
+	 */
+	public interface Handler {
+		void process(Transportable content);
+	}
+
+	private final Handler handler;
+
+	private final int mask;
+	private final Transportable[] messages;
+
+	//Number of messages submitted by the producer and processed by the worker
+	private volatile long published = 0;
+	private volatile long processed = 0;
+
+	private volatile boolean running = false;
+	private Thread worker;
+
+	//Producer waiting for the worker, or null
+	private volatile Thread waiter;
+
+	//What stopped the worker, if it failed
+	private volatile Throwable failure;
+
+	/**
+	 * @param capacity number of messages the buffer holds, rounded up to a power of two
+	 * @param handler
+	 */
+	public ReportPipeline(int capacity, Handler handler) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.handler = handler;
+		this.mask = size - 1;
+		this.messages = new Transportable[size];
+	}
+
+	/**
+	 * Starts the worker.
+	 */
+	public void start() {
+		if (running)
+			return;
+		running = true;
+		worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				processLoop();
+			}
+		}, "FoolAgent report pipeline");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Processes the remaining messages and stops the worker.
+	 */
+	public void close() {
+		if (!running)
+			return;
+		running = false;
+		LockSupport.unpark(worker);
+		try {
+			worker.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		worker = null;
+	}
+
+	/**
+	 * Hands a message to the worker, waiting if the buffer is full.
+	 * @param content
+	 * @throws IllegalStateException if the worker is not running
+	 */
+	public void submit(Transportable content) {
+		long sequence = published;
+		if (sequence - processed > mask)
+			waitUntilProcessed(sequence - mask);
+		checkRunning();
+		messages[(int) sequence & mask] = content;
+		published = sequence + 1;
+		LockSupport.unpark(worker);
+	}
+
+	/**
+	 * Waits until every submitted message has been processed.
+	 * @throws IllegalStateException if the worker failed
+	 */
+	public void await() {
+		waitUntilProcessed(published);
+		if (failure != null)
+			throw new IllegalStateException("Report pipeline stopped", failure);
+	}
+
+	private void waitUntilProcessed(long sequence) {
+		if (processed >= sequence)
+			return;
+		waiter = Thread.currentThread();
+		try {
+			while (processed < sequence) {
+				checkRunning();
+				LockSupport.park(this);
+			}
+		} finally {
+			waiter = null;
+		}
+	}
+
+	private void checkRunning() {
+		if (failure != null)
+			throw new IllegalStateException("Report pipeline stopped", failure);
+		if (!running)
+			throw new IllegalStateException("Report pipeline is not running");
+	}
+
+	private void processLoop() {
+		try {
+			while (true) {
+				long sequence = processed;
+				if (sequence == published) {
+					if (!running)
+						break;
+					LockSupport.park(this);
+					continue;
+				}
+				int i = (int) sequence & mask;
+				handler.process(messages[i]);
+				messages[i] = null;
+				processed = sequence + 1;
+
+				Thread waiting = waiter;
+				if (waiting != null)
+					LockSupport.unpark(waiting);
+			}
+		} catch (Throwable t) {
+			failure = t;
+			running = false;
+			Thread waiting = waiter;
+			if (waiting != null)
+				LockSupport.unpark(waiting);
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package edu.udel.agents.fool;
+
+/**
+ * Decides whether the impressions of a query are currently spiking. A detector is given
+ * every new daily impression of each query through {@link #observe(int, double)} while
+ * the query reports are processed, and is asked for a decision once per day through
+ * {@link #detect(int, DoubleRingBuffer)}. Queries are addressed by their
+ * {@link QueryStateTable} slot.
+ */
+public interface SpikeDetector {
+
+	/**
+	 * Prepares the detector for a new query space, discarding any previous state.
+	 * @param queries number of query slots
+	 */
+	void setup(int queries);
+
+	/**
+	 * Records a new daily impression count of a query.
+	 * @param slot slot of the query
+	 * @param impressions impressions of the day
+	 */
+	void observe(int slot, double impressions);
+
+	/**
+	 * Decides whether a query is spiking.
+	 * @param slot slot of the query
+	 * @param history daily impressions of the query, oldest first
+	 * @return true if the query is spiking
+	 */
+	boolean detect(int slot, DoubleRingBuffer history);
+
+	/**
+	 * @return the regular impression level of the query examined by the last call to detect
+	 */
+	double getBaseline();
+
+	/**
+	 * @return the elevated impression level of the query examined by the last call to detect
+	 */
+	double getPeak();
+}
@@ -0,0 +1,475 @@
+package edu.udel.agents.fool;
+
+import edu.umich.eecs.tac.props.*;
+import se.sics.tasim.props.StartInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Seeded stand-in for the TAC AA market, used to drive the agent without a server. It
+ * builds a retail catalog of any size and, for every day, the {@link QueryReport} and
+ * {@link SalesReport} resulting from the bids of the agent against a field of simulated
+ * competitors. The model is deliberately simple:
+ * <ul>
+ * <li>each query has a base number of searches, with occasional bursts</li>
+ * <li>ads are ranked by bid, the position decides the impressions and click rate</li>
+ * <li>a click costs the next lower bid (generalized second price)</li>
+ * <li>clicks convert more often on focused queries and in the component specialty, and
+ * less often once the sales of the distribution window exceed the capacity</li>
+ * <li>clicks stop once the spend limit of the query or of the campaign is reached</li>
+ * </ul>
+ * Bids take effect with the lag of the TAC AA server: a bid bundle placed on day d is
+ * used for the auctions of day d + 1, whose reports are delivered on day d + 2. The
+ * bundles placed before a call to {@link #runDay()} are therefore applied at the start
+ * of the following call, so the feedback loop of the agent is as slow offline as live.
+ * <p>
+ * Two markets built with the same seed and sizes produce the same reports for the same bids.
+ */
+public class SyntheticMarket {
+
+	//Name of the agent in the reports
+	public static final String ADVERTISER = "fool";
+
+	//Name of the publisher
+	public static final String PUBLISHER = "publisher";
+
+	//Sales profit of a product
+	private static final double SALES_PROFIT = 10;
+
+	//Regular ad slots of each auction
+	private static final int SLOTS = 5;
+
+	//Simulated competitors
+	private static final int COMPETITORS = 7;
+
+	//Names of the competitors in the reports
+	private static final String[] COMPETITOR_NAMES = new String[COMPETITORS];
+	static {
+		for (int k = 0; k < COMPETITORS; k++)
+			COMPETITOR_NAMES[k] = "adv" + (k + 1);
+	}
+
+	//Distribution window in days
+	private static final int DISTRIBUTION_WINDOW = 5;
+
+	private final Random random;
+	private final int days;
+	private final int secondsPerDay;
+
+	private final RetailCatalog retailCatalog = new RetailCatalog();
+	private final List<Query> queries = new ArrayList<Query>();
+	private final Map<Query, Integer> queryIndex = new HashMap<Query, Integer>();
+	private final AdvertiserInfo advertiserInfo = new AdvertiserInfo();
+
+	//Searches per day, remaining burst days and click/conversion rates of each query
+	private final double[] searches;
+	private final int[] burstDays;
+	private final double[] clickRate;
+	private final double[] conversionRate;
+
+	//Bids and ads of the competitors, and of the agent
+	private final double[][] competitorBids;
+	private final Ad[][] competitorAds;
+	private final double[] bids;
+	private final Ad[] ads;
+
+	//Daily spend limits of the agent for each query and for the campaign
+	private final double[] limits;
+	private double campaignLimit = BidBundle.NO_SPEND_LIMIT;
+
+	//Bid bundles placed since the last day was run, and those placed before it, which
+	//are applied to the next day
+	private List<BidBundle> placed = new ArrayList<BidBundle>();
+	private List<BidBundle> pending = new ArrayList<BidBundle>();
+
+	//Daily conversions of the agent over the distribution window
+	private final int[] windowConversions = new int[DISTRIBUTION_WINDOW];
+	private int windowTotal = 0;
+	private int day = 0;
+
+	//Totals of the agent over the game
+	private double revenue = 0;
+	private double cost = 0;
+	private long impressions = 0;
+	private long clicks = 0;
+	private long conversions = 0;
+
+	/**
+	 * @param seed seed of the market
+	 * @param manufacturers number of manufacturers of the catalog
+	 * @param components number of components of the catalog
+	 * @param days number of simulation days
+	 */
+	public SyntheticMarket(long seed, int manufacturers, int components, int days) {
+		this(seed, manufacturers, components, days, 10);
+	}
+
+	/**
+	 * @param seed seed of the market
+	 * @param manufacturers number of manufacturers of the catalog
+	 * @param components number of components of the catalog
+	 * @param days number of simulation days
+	 * @param secondsPerDay day length announced in the {@link StartInfo}
+	 */
+	public SyntheticMarket(long seed, int manufacturers, int components, int days, int secondsPerDay) {
+		this.random = new Random(seed);
+		this.days = days;
+		this.secondsPerDay = secondsPerDay;
+
+		List<String> manufacturerNames = new ArrayList<String>();
+		List<String> componentNames = new ArrayList<String>();
+		for (int m = 0; m < manufacturers; m++)
+			manufacturerNames.add("man" + m);
+		for (int c = 0; c < components; c++)
+			componentNames.add("comp" + c);
+
+		for (String manufacturer : manufacturerNames)
+			for (String component : componentNames) {
+				Product product = new Product(manufacturer, component);
+				retailCatalog.addProduct(product);
+				retailCatalog.setSalesProfit(product, SALES_PROFIT);
+			}
+
+		addQuery(new Query(null, null));
+		for (String manufacturer : manufacturerNames)
+			addQuery(new Query(manufacturer, null));
+		for (String component : componentNames)
+			addQuery(new Query(null, component));
+		for (String manufacturer : manufacturerNames)
+			for (String component : componentNames)
+				addQuery(new Query(manufacturer, component));
+
+		String manufacturerSpecialty = manufacturerNames.get(random.nextInt(manufacturers));
+		String componentSpecialty = componentNames.get(random.nextInt(components));
+		advertiserInfo.setAdvertiserId(ADVERTISER);
+		advertiserInfo.setPublisherId(PUBLISHER);
+		advertiserInfo.setManufacturerSpecialty(manufacturerSpecialty);
+		advertiserInfo.setComponentSpecialty(componentSpecialty);
+		advertiserInfo.setManufacturerBonus(0.4);
+		advertiserInfo.setComponentBonus(0.5);
+		advertiserInfo.setDistributionWindow(DISTRIBUTION_WINDOW);
+		advertiserInfo.setDistributionCapacity(
+				Math.max(DISTRIBUTION_WINDOW, 400 * manufacturers * components / 9));
+		advertiserInfo.setDistributionCapacityDiscounter(0.995);
+
+		int n = queries.size();
+		searches = new double[n];
+		burstDays = new int[n];
+		clickRate = new double[n];
+		conversionRate = new double[n];
+		competitorBids = new double[n][COMPETITORS];
+		competitorAds = new Ad[n][COMPETITORS];
+		bids = new double[n];
+		ads = new Ad[n];
+		limits = new double[n];
+
+		List<Product> products = new ArrayList<Product>();
+		for (Product product : retailCatalog)
+			products.add(product);
+		double productShare = 9. / Math.max(1, products.size());
+
+		for (int q = 0; q < n; q++) {
+			Query query = queries.get(q);
+			int type = type(query);
+			searches[q] = (type == 0 ? 400 : type == 1 ? 250 : 150) * (0.5 + random.nextDouble())
+					* Math.max(0.05, Math.min(1, productShare * (type == 2 ? 1 : 3)));
+			clickRate[q] = type == 0 ? 0.2 : type == 1 ? 0.25 : 0.3;
+			conversionRate[q] = type == 0 ? 0.1 : type == 1 ? 0.2 : 0.3;
+			if (componentSpecialty.equals(query.getComponent()))
+				conversionRate[q] = Math.min(1, conversionRate[q] * 1.5);
+			for (int k = 0; k < COMPETITORS; k++) {
+				competitorBids[q][k] = 0.25 + random.nextDouble() * 1.5;
+				competitorAds[q][k] = new Ad(products.get(random.nextInt(products.size())));
+			}
+			bids[q] = 0;
+			limits[q] = BidBundle.NO_SPEND_LIMIT;
+		}
+	}
+
+	private void addQuery(Query query) {
+		queryIndex.put(query, queries.size());
+		queries.add(query);
+	}
+
+	private static int type(Query query) {
+		if (query.getManufacturer() != null && query.getComponent() != null)
+			return 2;
+		if (query.getManufacturer() == null && query.getComponent() == null)
+			return 0;
+		return 1;
+	}
+
+	/**
+	 * @return the start information of the game
+	 */
+	public StartInfo getStartInfo() {
+		return new StartInfo(1, 0L, days * secondsPerDay * 1000, secondsPerDay);
+	}
+
+	/**
+	 * @return the slot information of the game
+	 */
+	public SlotInfo getSlotInfo() {
+		SlotInfo slotInfo = new SlotInfo();
+		slotInfo.setRegularSlots(SLOTS);
+		slotInfo.setPromotedSlots(0);
+		return slotInfo;
+	}
+
+	/**
+	 * @return the publisher information of the game
+	 */
+	public PublisherInfo getPublisherInfo() {
+		PublisherInfo publisherInfo = new PublisherInfo();
+		publisherInfo.setSquashingParameter(1);
+		return publisherInfo;
+	}
+
+	/**
+	 * @return the retail catalog of the game
+	 */
+	public RetailCatalog getRetailCatalog() {
+		return retailCatalog;
+	}
+
+	/**
+	 * @return the advertiser information of the agent
+	 */
+	public AdvertiserInfo getAdvertiserInfo() {
+		return advertiserInfo;
+	}
+
+	/**
+	 * @return all the F0, F1 and F2 queries of the catalog
+	 */
+	public List<Query> getQueries() {
+		return Collections.unmodifiableList(queries);
+	}
+
+	/**
+	 * @return number of simulation days
+	 */
+	public int getDays() {
+		return days;
+	}
+
+	/**
+	 * Places the bids of the agent. They are applied at the start of the second day run
+	 * after this, the day after the one that runs next.
+	 * @param bidBundle
+	 */
+	public void placeBids(BidBundle bidBundle) {
+		placed.add(bidBundle);
+	}
+
+	/**
+	 * Applies a bid bundle. NaN bids, null ads and NaN spend limits keep the previous
+	 * values, like the publisher does.
+	 */
+	private void apply(BidBundle bidBundle) {
+		for (int i = 0; i < bidBundle.size(); i++) {
+			Integer q = queryIndex.get(bidBundle.getQuery(i));
+			if (q == null)
+				continue;
+			double bid = bidBundle.getBid(i);
+			if (!Double.isNaN(bid))
+				bids[q] = bid;
+			Ad ad = bidBundle.getAd(i);
+			if (ad != null)
+				ads[q] = ad;
+			double limit = bidBundle.getDailyLimit(i);
+			if (!Double.isNaN(limit))
+				limits[q] = limit;
+		}
+		if (!Double.isNaN(bidBundle.getCampaignDailySpendLimit()))
+			campaignLimit = bidBundle.getCampaignDailySpendLimit();
+	}
+
+	/**
+	 * Runs the auctions of one day with the bids placed before the previous day was run.
+	 * @return the query report and sales report of the day
+	 */
+	public Reports runDay() {
+		for (BidBundle bidBundle : pending)
+			apply(bidBundle);
+		pending.clear();
+		List<BidBundle> next = pending;
+		pending = placed;
+		placed = next;
+
+		QueryReport queryReport = new QueryReport();
+		SalesReport salesReport = new SalesReport();
+
+		int dailyConversions = 0;
+		double dailyCost = 0;
+		double over = Math.max(0, windowTotal - advertiserInfo.getDistributionCapacity());
+		double capacityFactor = Math.pow(advertiserInfo.getDistributionCapacityDiscounter(), over);
+
+		for (int q = 0; q < queries.size(); q++) {
+			Query query = queries.get(q);
+			double[] competitors = competitorBids[q];
+			for (int k = 0; k < COMPETITORS; k++)
+				competitors[k] = Math.max(0.1, competitors[k] * (0.9 + 0.2 * random.nextDouble()));
+
+			if (burstDays[q] > 0)
+				burstDays[q]--;
+			else if (random.nextInt(30) == 0)
+				burstDays[q] = 1 + random.nextInt(3);
+			double daySearches = searches[q] * (burstDays[q] > 0 ? 3 : 1) * (0.8 + 0.4 * random.nextDouble());
+
+			int position = 1;
+			double price = 0.1;
+			for (int k = 0; k < COMPETITORS; k++) {
+				if (competitors[k] > bids[q])
+					position++;
+				else
+					price = Math.max(price, competitors[k]);
+			}
+
+			int queryImpressions = 0;
+			int queryClicks = 0;
+			int queryConversions = 0;
+			double queryCost = 0;
+			double queryRevenue = 0;
+			if (bids[q] > 0 && position <= SLOTS) {
+				queryImpressions = (int) (daySearches * Math.pow(0.9, position - 1));
+				queryClicks = binomial(queryImpressions, clickRate[q] * Math.pow(0.8, position - 1));
+				double cpc = Math.min(bids[q], price);
+				double affordable = Math.floor(Math.max(0, Math.min(limits[q], campaignLimit - dailyCost)) / cpc);
+				if (queryClicks > affordable) {
+					// The ad is pulled when the limit is reached, along with its remaining impressions
+					queryImpressions = (int) (queryImpressions * affordable / queryClicks);
+					queryClicks = (int) affordable;
+				}
+				queryCost = queryClicks * cpc;
+				queryConversions = binomial(queryClicks, conversionRate[q] * capacityFactor);
+				queryRevenue = queryConversions * revenuePerConversion(ads[q]);
+			}
+
+			int index = queryReport.addQuery(query);
+			queryReport.setImpressions(index, queryImpressions, 0);
+			queryReport.setClicks(index, queryClicks, queryCost);
+			queryReport.setPositionSum(index, position <= SLOTS ? position * (double) queryImpressions : 0);
+			queryReport.setAdAndPosition(index, ADVERTISER, ads[q],
+					queryImpressions > 0 ? position : Double.NaN);
+			for (int k = 0; k < COMPETITORS; k++) {
+				int competitorPosition = 1;
+				for (int other = 0; other < COMPETITORS; other++)
+					if (competitors[other] > competitors[k])
+						competitorPosition++;
+				if (bids[q] > competitors[k])
+					competitorPosition++;
+				queryReport.setAdAndPosition(index, COMPETITOR_NAMES[k], competitorAds[q][k],
+						competitorPosition <= SLOTS ? competitorPosition : Double.NaN);
+			}
+
+			salesReport.setConversionsAndRevenue(salesReport.addQuery(query), queryConversions, queryRevenue);
+
+			dailyConversions += queryConversions;
+			dailyCost += queryCost;
+			impressions += queryImpressions;
+			clicks += queryClicks;
+			conversions += queryConversions;
+			cost += queryCost;
+			revenue += queryRevenue;
+		}
+
+		int slot = day % DISTRIBUTION_WINDOW;
+		windowTotal += dailyConversions - windowConversions[slot];
+		windowConversions[slot] = dailyConversions;
+		day++;
+
+		return new Reports(queryReport, salesReport);
+	}
+
+	private double revenuePerConversion(Ad ad) {
+		if (ad != null && ad.getProduct() != null
+				&& advertiserInfo.getManufacturerSpecialty().equals(ad.getProduct().getManufacturer()))
+			return SALES_PROFIT * (1 + advertiserInfo.getManufacturerBonus());
+		return SALES_PROFIT;
+	}
+
+	private int binomial(int trials, double probability) {
+		if (trials <= 0 || probability <= 0)
+			return 0;
+		if (trials > 50) {
+			double mean = trials * probability;
+			double deviation = Math.sqrt(mean * (1 - probability));
+			return (int) Math.max(0, Math.min(trials, Math.round(mean + deviation * random.nextGaussian())));
+		}
+		int successes = 0;
+		for (int i = 0; i < trials; i++)
+			if (random.nextDouble() < probability)
+				successes++;
+		return successes;
+	}
+
+	/**
+	 * @return revenue of the agent so far
+	 */
+	public double getRevenue() {
+		return revenue;
+	}
+
+	/**
+	 * @return advertising cost of the agent so far
+	 */
+	public double getCost() {
+		return cost;
+	}
+
+	/**
+	 * @return revenue minus advertising cost of the agent so far
+	 */
+	public double getProfit() {
+		return revenue - cost;
+	}
+
+	/**
+	 * @return impressions of the agent so far
+	 */
+	public long getImpressions() {
+		return impressions;
+	}
+
+	/**
+	 * @return clicks of the agent so far
+	 */
+	public long getClicks() {
+		return clicks;
+	}
+
+	/**
+	 * @return conversions of the agent so far
+	 */
+	public long getConversions() {
+		return conversions;
+	}
+
+	/**
+	 * The reports of one simulated day.
+	 */
+	public static class Reports {
+
+		private final QueryReport queryReport;
+		private final SalesReport salesReport;
+
+		Reports(QueryReport queryReport, SalesReport salesReport) {
+			this.queryReport = queryReport;
+			this.salesReport = salesReport;
+		}
+
+		public QueryReport getQueryReport() {
+			return queryReport;
+		}
+
+		public SalesReport getSalesReport() {
+			return salesReport;
+		}
+	}
+}
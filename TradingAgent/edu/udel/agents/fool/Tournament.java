@@ -0,0 +1,159 @@
+package edu.udel.agents.fool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Plays many independent {@link OfflineSimulation} games in parallel. Game g is played
+ * against a {@link SyntheticMarket} seeded with seed + g, so its result does not depend
+ * on the number of threads or on which thread plays it. Each thread keeps its own agent
+ * and takes the next game from a shared counter until all games are played, so the
+ * threads share nothing but the counter and the {@link TournamentStatistics}. The run
+ * exits with status 1 if a message failed in any game.
+ * <p>
+ * Usage: <code>Tournament [games [threads [seed [manufacturers components [days]]]]]</code>
+ */
+public class Tournament {
+
+	private final int games;
+	private final int threads;
+	private final long seed;
+	private final int manufacturers;
+	private final int components;
+	private final int days;
+
+	//Next game to play
+	private final AtomicInteger nextGame = new AtomicInteger();
+
+	private final TournamentStatistics statistics = new TournamentStatistics();
+
+	//Result of each game, written once by the thread that played it
+	private final GameResult[] results;
+
+	/**
+	 * @param games number of games to play
+	 * @param threads number of games played at the same time
+	 * @param seed seed of the market of the first game
+	 * @param manufacturers number of manufacturers of the retail catalog
+	 * @param components number of components of the retail catalog
+	 * @param days number of simulation days of a game
+	 */
+	public Tournament(int games, int threads, long seed, int manufacturers, int components, int days) {
+		if (threads <= 0)
+			throw new IllegalArgumentException("threads must be positive: " + threads);
+		this.games = games;
+		this.threads = threads;
+		this.seed = seed;
+		this.manufacturers = manufacturers;
+		this.components = components;
+		this.days = days;
+		this.results = new GameResult[games];
+	}
+
+	/**
+	 * Creates the agent of a thread. It plays all the games of that thread, processing
+	 * the reports on that thread too: a report pipeline would add a thread per game on
+	 * top of the pool, and a hand-off for every report. The agent does not use the
+	 * knowledge store, which every game would read and rewrite, so that a game does not
+	 * depend on the games played before it.
+	 * @return
+	 */
+	protected OfflineAgent createAgent() {
+		OfflineAgent agent = new OfflineAgent();
+		agent.decisionLogLevel = DecisionLog.Level.OFF;
+		agent.pipelinedIngestion = false;
+		agent.knowledgeFile = null;
+		return agent;
+	}
+
+	/**
+	 * Plays all the games. A tournament is played only once.
+	 * @return the statistics of the games
+	 * @throws InterruptedException if the calling thread is interrupted while the games are played
+	 */
+	public TournamentStatistics run() throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Void>> workers = new ArrayList<Future<Void>>(threads);
+			for (int t = 0; t < threads; t++) {
+				workers.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						playGames();
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> worker : workers) {
+				try {
+					worker.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException)
+						throw (RuntimeException) cause;
+					if (cause instanceof Error)
+						throw (Error) cause;
+					throw new IllegalStateException(cause);
+				}
+			}
+		} finally {
+			// Stops the other threads at their next game if one of them failed
+			nextGame.set(games);
+			executor.shutdownNow();
+		}
+		return statistics;
+	}
+
+	private void playGames() {
+		OfflineAgent agent = createAgent();
+		for (int game = nextGame.getAndIncrement(); game < games; game = nextGame.getAndIncrement()) {
+			SyntheticMarket market = new SyntheticMarket(seed + game, manufacturers, components, days);
+			GameResult result = new OfflineSimulation(agent, market).run();
+			results[game] = result;
+			statistics.add(result);
+		}
+	}
+
+	/**
+	 * @return statistics of the games played so far
+	 */
+	public TournamentStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * @param game
+	 * @return result of a game, or null if it has not been played
+	 */
+	public GameResult getResult(int game) {
+		return results[game];
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int games = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+		int manufacturers = args.length > 4 ? Integer.parseInt(args[3]) : 3;
+		int components = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+		int days = args.length > 5 ? Integer.parseInt(args[5]) : 60;
+
+		Tournament tournament = new Tournament(games, threads, seed, manufacturers, components, days);
+		long start = System.nanoTime();
+		TournamentStatistics statistics = tournament.run();
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.println(statistics);
+		System.out.format("%d games on %d threads in %.2f s, %.0f games per minute, %.1f ms per game%n",
+				games, threads, seconds, 60 * games / seconds, statistics.getNanos() / 1e6 / Math.max(1, games));
+		if (statistics.getErrors() > 0) {
+			System.err.println(statistics.getErrors() + " messages failed");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package edu.udel.agents.fool;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics of the games of a tournament, updated concurrently by the threads playing
+ * them. Every total is an atomic variable updated by compare-and-set, so adding a game
+ * never blocks another thread. Sums of doubles are stored as their bit patterns.
+ * <p>
+ * Sums of doubles depend slightly on the order the games are added in, so two runs of the
+ * same tournament can differ in the last digits.
+ */
+public class TournamentStatistics {
+
+	private final AtomicInteger games = new AtomicInteger();
+	private final AtomicInteger errors = new AtomicInteger();
+	private final AtomicLong bids = new AtomicLong();
+	private final AtomicLong nanos = new AtomicLong();
+
+	private final AtomicLong profit = new AtomicLong(Double.doubleToRawLongBits(0));
+	private final AtomicLong profitSquares = new AtomicLong(Double.doubleToRawLongBits(0));
+	private final AtomicLong revenue = new AtomicLong(Double.doubleToRawLongBits(0));
+	private final AtomicLong cost = new AtomicLong(Double.doubleToRawLongBits(0));
+	private final AtomicLong bidTotal = new AtomicLong(Double.doubleToRawLongBits(0));
+	private final AtomicLong minProfit = new AtomicLong(Double.doubleToRawLongBits(Double.POSITIVE_INFINITY));
+	private final AtomicLong maxProfit = new AtomicLong(Double.doubleToRawLongBits(Double.NEGATIVE_INFINITY));
+
+	/**
+	 * Adds the outcome of a game.
+	 * @param result
+	 */
+	public void add(GameResult result) {
+		double gameProfit = result.getProfit();
+		add(profit, gameProfit);
+		add(profitSquares, gameProfit * gameProfit);
+		add(revenue, result.getRevenue());
+		add(cost, result.getCost());
+		add(bidTotal, result.getMeanBid() * result.getBids());
+		min(minProfit, gameProfit);
+		max(maxProfit, gameProfit);
+		bids.addAndGet(result.getBids());
+		errors.addAndGet(result.getErrors());
+		nanos.addAndGet(result.getNanos());
+		// Counted last, so a reader seeing n games sees at least their totals
+		games.incrementAndGet();
+	}
+
+	private static void add(AtomicLong sum, double value) {
+		while (true) {
+			long current = sum.get();
+			long next = Double.doubleToRawLongBits(Double.longBitsToDouble(current) + value);
+			if (sum.compareAndSet(current, next))
+				return;
+		}
+	}
+
+	private static void min(AtomicLong min, double value) {
+		while (true) {
+			long current = min.get();
+			if (Double.longBitsToDouble(current) <= value
+					|| min.compareAndSet(current, Double.doubleToRawLongBits(value)))
+				return;
+		}
+	}
+
+	private static void max(AtomicLong max, double value) {
+		while (true) {
+			long current = max.get();
+			if (Double.longBitsToDouble(current) >= value
+					|| max.compareAndSet(current, Double.doubleToRawLongBits(value)))
+				return;
+		}
+	}
+
+	private static double get(AtomicLong sum) {
+		return Double.longBitsToDouble(sum.get());
+	}
+
+	/**
+	 * @return number of games added
+	 */
+	public int getGames() {
+		return games.get();
+	}
+
+	public double getMeanProfit() {
+		int n = games.get();
+		return n == 0 ? 0 : get(profit) / n;
+	}
+
+	/**
+	 * @return sample standard deviation of the profit of a game
+	 */
+	public double getProfitStandardDeviation() {
+		int n = games.get();
+		if (n < 2)
+			return 0;
+		double mean = get(profit) / n;
+		return Math.sqrt(Math.max(0, (get(profitSquares) - n * mean * mean) / (n - 1)));
+	}
+
+	public double getMinProfit() {
+		return games.get() == 0 ? 0 : get(minProfit);
+	}
+
+	public double getMaxProfit() {
+		return games.get() == 0 ? 0 : get(maxProfit);
+	}
+
+	public double getMeanRevenue() {
+		int n = games.get();
+		return n == 0 ? 0 : get(revenue) / n;
+	}
+
+	/**
+	 * @return average advertising spend of a game
+	 */
+	public double getMeanCost() {
+		int n = games.get();
+		return n == 0 ? 0 : get(cost) / n;
+	}
+
+	/**
+	 * @return average explicit bid over all games
+	 */
+	public double getMeanBid() {
+		long n = bids.get();
+		return n == 0 ? 0 : get(bidTotal) / n;
+	}
+
+	/**
+	 * @return number of messages whose processing failed over all games
+	 */
+	public int getErrors() {
+		return errors.get();
+	}
+
+	/**
+	 * @return time spent playing the games, summed over the threads, in nanoseconds
+	 */
+	public long getNanos() {
+		return nanos.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("games %d\tprofit %.2f +- %.2f [%.2f, %.2f]\trevenue %.2f\tcost %.2f\tmean bid %.3f\terrors %d",
+				getGames(), getMeanProfit(), getProfitStandardDeviation(), getMinProfit(), getMaxProfit(),
+				getMeanRevenue(), getMeanCost(), getMeanBid(), getErrors());
+	}
+}
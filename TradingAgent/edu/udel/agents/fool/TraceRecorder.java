@@ -0,0 +1,79 @@
+package edu.udel.agents.fool;
+
+import se.sics.isl.transport.BinaryTransportWriter;
+import se.sics.isl.transport.Transportable;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends the messages of a game to a {@link MessageTrace}. Records are collected in a
+ * direct buffer and written to the file channel when it fills up, so recording a
+ * message costs its encoding and a copy, and the disk is only touched every few days.
+ */
+public class TraceRecorder implements Closeable {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	/**
+	 * Creates a trace, replacing any file with the same name.
+	 * @param file
+	 * @throws IOException if the file cannot be created
+	 */
+	public TraceRecorder(String file) throws IOException {
+		channel = new FileOutputStream(file).getChannel();
+		buffer.putInt(MessageTrace.MAGIC);
+		buffer.putInt(MessageTrace.VERSION);
+	}
+
+	/**
+	 * Records a message.
+	 * @param direction {@link MessageTrace#RECEIVED} or {@link MessageTrace#SENT}
+	 * @param content
+	 * @throws IOException if the trace cannot be written
+	 */
+	public void record(byte direction, Transportable content) throws IOException {
+		BinaryTransportWriter writer = MessageTrace.encoder(content);
+		int size = writer.size();
+		if (buffer.remaining() < MessageTrace.RECORD_HEADER + size)
+			flush();
+
+		buffer.put(direction);
+		buffer.putInt(size);
+		if (buffer.remaining() >= size) {
+			writer.write(buffer);
+		} else {
+			// Larger than the buffer: written directly after the record header
+			flush();
+			ByteBuffer message = ByteBuffer.wrap(writer.getBytes());
+			while (message.hasRemaining())
+				channel.write(message);
+		}
+	}
+
+	/**
+	 * Writes the buffered records to the file.
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
+	}
+}
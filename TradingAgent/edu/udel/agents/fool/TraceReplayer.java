@@ -0,0 +1,163 @@
+package edu.udel.agents.fool;
+
+import edu.umich.eecs.tac.props.BidBundle;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * Plays a {@link MessageTrace} back into a fresh agent and checks that the agent sends
+ * the same bid bundles as the one that recorded it, byte for byte. The replaying agent
+ * must be configured like the recording one, since its parameters are not part of the
+ * trace.
+ * <p>
+ * Neither are the priors the recording agent read from its knowledge store. A replay
+ * therefore never uses the store, which it would also update at the end of the game, and
+ * {@link #main(String[])} replays with the default parameters rather than those of
+ * <code>fool.parameters</code>. Only a trace recorded without a knowledge store and with
+ * the default parameters is expected to replay identically.
+ * <p>
+ * Usage: <code>TraceReplayer trace...</code>
+ */
+public class TraceReplayer {
+
+	private final OfflineAgent agent;
+
+	//Outcome of the last replay
+	private int bundles;
+	private int mismatches;
+	private int missing;
+	private int extra;
+	private int skipped;
+	private int firstMismatch;
+
+	/**
+	 * @param agent agent to replay the traces into, prepared for a new simulation by each replay
+	 */
+	public TraceReplayer(OfflineAgent agent) {
+		this.agent = agent;
+	}
+
+	/**
+	 * Replays a trace, without the knowledge store of the agent.
+	 * @param file
+	 * @return true if the agent sent exactly the recorded bid bundles
+	 * @throws IOException if the trace cannot be read
+	 */
+	public boolean replay(String file) throws IOException {
+		bundles = 0;
+		mismatches = 0;
+		missing = 0;
+		extra = 0;
+		skipped = 0;
+		firstMismatch = -1;
+
+		MessageTrace trace = new MessageTrace(file);
+		int received = 0;
+		agent.knowledgeFile = null;
+		try {
+			agent.setup();
+			while (trace.next()) {
+				if (trace.getDirection() == MessageTrace.SENT) {
+					bundles++;
+					BidBundle sent = agent.takeBidBundle();
+					if (sent == null) {
+						missing++;
+						mismatch(received);
+					} else if (!Arrays.equals(MessageTrace.encode(sent), trace.getBytes())) {
+						mismatches++;
+						mismatch(received);
+					}
+				} else {
+					countExtra(received);
+					try {
+						agent.deliver(trace.getMessage());
+					} catch (ParseException e) {
+						skipped++;
+					}
+					received++;
+				}
+			}
+			countExtra(received);
+		} finally {
+			trace.close();
+			agent.finish();
+		}
+		return mismatches == 0 && missing == 0 && extra == 0;
+	}
+
+	//Bundles sent by the agent beyond the recorded ones
+	private void countExtra(int message) {
+		while (agent.takeBidBundle() != null) {
+			extra++;
+			mismatch(message);
+		}
+	}
+
+	private void mismatch(int message) {
+		if (firstMismatch < 0)
+			firstMismatch = message;
+	}
+
+	/**
+	 * @return number of recorded bid bundles
+	 */
+	public int getBundles() {
+		return bundles;
+	}
+
+	/**
+	 * @return number of bid bundles that differ from the recorded ones
+	 */
+	public int getMismatches() {
+		return mismatches;
+	}
+
+	/**
+	 * @return number of recorded bid bundles the agent did not send
+	 */
+	public int getMissing() {
+		return missing;
+	}
+
+	/**
+	 * @return number of bid bundles the agent sent that were not recorded
+	 */
+	public int getExtra() {
+		return extra;
+	}
+
+	/**
+	 * @return number of received messages that could not be decoded
+	 */
+	public int getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * @return number of messages received before the first difference, or -1 if there was none
+	 */
+	public int getFirstMismatch() {
+		return firstMismatch;
+	}
+
+	public static void main(String[] args) throws IOException {
+		OfflineAgent agent = new OfflineAgent();
+		agent.decisionLogLevel = DecisionLog.Level.OFF;
+		agent.parameters = AgentParameters.DEFAULTS;
+		TraceReplayer replayer = new TraceReplayer(agent);
+
+		boolean identical = true;
+		for (String file : args) {
+			boolean same = replayer.replay(file);
+			identical &= same;
+			System.out.format("%s: %s, %d bundles, %d different, %d missing, %d extra, %d messages skipped%s%n",
+					file, same ? "identical" : "DIFFERENT", replayer.getBundles(), replayer.getMismatches(),
+					replayer.getMissing(), replayer.getExtra(), replayer.getSkipped(),
+					same ? "" : ", first difference after message " + replayer.getFirstMismatch());
+		}
+		if (!identical)
+			System.exit(1);
+	}
+}
@@ -0,0 +1,112 @@
+package edu.udel.agents.fool;
+
+import java.util.Arrays;
+
+/**
+ * Spike detector that splits the impression history of a query into two clusters and
+ * reports a spike when the two cluster centers are far enough apart. This is k-means
+ * with k = 2 on one-dimensional data, which can be solved exactly: once the values are
+ * sorted the best split is found by scanning the prefix sums for the largest
+ * between-cluster variance (Otsu's method). All buffers are allocated up front so a
+ * detection does not create any objects.
+ */
+public class TwoMeansSpikeDetector implements SpikeDetector {
+
+	//Minimum number of points before a spike can be detected
+	private final int minPoints;
+
+	//Minimum relative difference between the two cluster centers
+	private final double minDifference;
+
+	//Sorted copy of the history being clustered
+	private final double[] sorted;
+
+	//Centers of the last clustering
+	private double lowCenter = 0;
+	private double highCenter = 0;
+
+	/**
+	 * @param capacity maximum number of points in a history
+	 * @param minPoints minimum number of points before a spike can be detected
+	 * @param minDifference minimum difference between the centers, relative to the lower one
+	 */
+	public TwoMeansSpikeDetector(int capacity, int minPoints, double minDifference) {
+		this.sorted = new double[capacity];
+		this.minPoints = minPoints;
+		this.minDifference = minDifference;
+	}
+
+	@Override
+	public void setup(int queries) {
+		lowCenter = 0;
+		highCenter = 0;
+	}
+
+	@Override
+	public void observe(int slot, double impressions) {
+		//The clustering is done on the whole history in detect
+	}
+
+	@Override
+	public boolean detect(int slot, DoubleRingBuffer history) {
+		lowCenter = 0;
+		highCenter = 0;
+		if (history.size() < minPoints)
+			return false;
+
+		int n = history.copyWindow(sorted.length, sorted);
+		if (!cluster(sorted, n))
+			return false;
+
+		return lowCenter != 0 && highCenter - lowCenter > minDifference * lowCenter;
+	}
+
+	/**
+	 * Finds the optimal two-cluster split of some values and stores the cluster centers.
+	 * @param values values to cluster, sorted in place
+	 * @param n number of values
+	 * @return false if the values do not form two distinct clusters
+	 */
+	boolean cluster(double[] values, int n) {
+		Arrays.sort(values, 0, n);
+		if (n < 2 || values[0] == values[n - 1])
+			return false;
+
+		double total = 0;
+		for (int i = 0; i < n; i++)
+			total += values[i];
+
+		// Maximizing sum_low^2/n_low + sum_high^2/n_high minimizes the within-cluster
+		// sum of squares. Only splits between distinct values are considered.
+		double best = Double.NEGATIVE_INFINITY;
+		int bestSplit = 0;
+		double bestLowSum = 0;
+		double lowSum = 0;
+		for (int k = 1; k < n; k++) {
+			lowSum += values[k - 1];
+			if (values[k - 1] == values[k])
+				continue;
+			double highSum = total - lowSum;
+			double score = lowSum * lowSum / k + highSum * highSum / (n - k);
+			if (score > best) {
+				best = score;
+				bestSplit = k;
+				bestLowSum = lowSum;
+			}
+		}
+
+		lowCenter = bestLowSum / bestSplit;
+		highCenter = (total - bestLowSum) / (n - bestSplit);
+		return true;
+	}
+
+	@Override
+	public double getBaseline() {
+		return lowCenter;
+	}
+
+	@Override
+	public double getPeak() {
+		return highCenter;
+	}
+}
@@ -0,0 +1,75 @@
+package edu.udel.agents.fool;
+
+import edu.umich.eecs.tac.props.BidBundle;
+import edu.umich.eecs.tac.props.Query;
+
+/**
+ * Checks the spend limits of {@link BudgetAllocator} as the daily budget becomes known
+ * and then unknown again, through the {@link BidDelta} that sends them.
+ * <ul>
+ * <li>Before any budget is known, no limit is sent.</li>
+ * <li>A query funded in part is sent a limit, a query funded in full none.</li>
+ * <li>When the budget becomes unknown after limits were sent, the query limit and the
+ * campaign limit are lifted instead of staying at the publisher.</li>
+ * </ul>
+ * The check prints the outcome of each step and exits with status 1 if any fails.
+ * <p>
+ * Usage: <code>BudgetAllocationCheck</code>
+ */
+public class BudgetAllocationCheck {
+
+	private static boolean ok = true;
+
+	public static void main(String[] args) {
+		Query[] queries = { new Query("pg", "tv"), new Query("pg", "dvd"), new Query("flat", "tv") };
+		double[] minimumLimit = { 0.5, 0.5, 0.5 };
+
+		BudgetAllocator allocator = new BudgetAllocator(2, 1);
+		allocator.setup(queries.length);
+		BidDelta bidDelta = new BidDelta(0.01, 0.1);
+		bidDelta.setup(queries.length);
+
+		// The first query returns more per cost than the second, the third has no cost yet
+		allocator.value[0] = 10;
+		allocator.cost[0] = 4;
+		allocator.value[1] = 6;
+		allocator.cost[1] = 4;
+
+		allocator.allocate(Double.NaN, minimumLimit);
+		BidBundle unknown = send(allocator, bidDelta, queries);
+		check("no limit before a budget is known", Double.isNaN(unknown.getDailyLimit(queries[1]))
+				&& Double.isNaN(unknown.getCampaignDailySpendLimit()));
+
+		allocator.allocate(6, minimumLimit);
+		BidBundle limited = send(allocator, bidDelta, queries);
+		check("partly funded query limited", limited.getDailyLimit(queries[1]) == 4);
+		check("fully funded query unlimited", limited.getDailyLimit(queries[0]) == BidBundle.NO_SPEND_LIMIT);
+		check("campaign limited", limited.getCampaignDailySpendLimit() == 12);
+
+		allocator.allocate(Double.NaN, minimumLimit);
+		BidBundle lifted = send(allocator, bidDelta, queries);
+		check("query limit lifted when the budget is lost", lifted.getDailyLimit(queries[1]) == BidBundle.NO_SPEND_LIMIT);
+		check("campaign limit lifted when the budget is lost",
+				lifted.getCampaignDailySpendLimit() == BidBundle.NO_SPEND_LIMIT);
+
+		if (!ok)
+			System.exit(1);
+	}
+
+	/**
+	 * Builds the bundle of a day with the same bids and the limits of the allocation.
+	 */
+	private static BidBundle send(BudgetAllocator allocator, BidDelta bidDelta, Query[] queries) {
+		BidBundle bidBundle = new BidBundle();
+		for (int slot = 0; slot < queries.length; slot++)
+			bidDelta.add(bidBundle, slot, queries[slot], 1.0, null, allocator.getLimit(slot));
+		bidBundle.setCampaignDailySpendLimit(allocator.getCampaignLimit());
+		bidDelta.endDay();
+		return bidBundle;
+	}
+
+	private static void check(String name, boolean passed) {
+		System.out.println(name + ": " + (passed ? "ok" : "FAILED"));
+		ok &= passed;
+	}
+}
@@ -0,0 +1,300 @@
+package edu.udel.agents.fool;
+
+import edu.umich.eecs.tac.props.BidBundle;
+import se.sics.isl.transport.Transportable;
+import se.sics.tasim.props.SimulationStatus;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Micro-benchmarks of the daily decision cycle of {@link FoolAgent}. A pool of identical
+ * agents is played against a {@link SyntheticMarket} up to a given simulation day, then
+ * each step of the cycle is measured on that state. Every step is run over a range of
+ * catalog sizes and simulation days. The results report the time per operation and
+ * the bytes allocated per operation on the measuring thread.
+ * <p>
+ * The message handlers change the state of the agent, so repeating one on the same agent
+ * would measure a different state every time. Each agent of the pool therefore goes
+ * through the day once, the query report, the sales report and the simulation status in
+ * order, and each handler is measured once per agent. Spike detection and bid limits are
+ * measured repeatedly on one agent, whose spike flags are restored after each call.
+ * <p>
+ * Each step is warmed up for at least a given time before it is measured, so that the
+ * JIT has compiled it. The handlers are warmed up on an extra agent of the pool whose
+ * state is then discarded, the other steps on the agent they are measured on.
+ * <p>
+ * Usage: <code>FoolAgentBenchmark [sizes [days [iterations [agents [warmupSeconds]]]]]</code>,
+ * where sizes is a comma separated list of manufacturers x components such as
+ * <code>3x3,10x10</code>, days a comma separated list of simulation days, iterations the
+ * number of measures of the steps that keep the state, and agents the size of the pool.
+ */
+public class FoolAgentBenchmark {
+
+	//Measured repetitions of the steps that keep the state, and agents of the pool
+	private final int iterations;
+	private final int agents;
+
+	//Minimum warm-up time of each step
+	private final long warmupNanos;
+
+	//Per-thread allocation counter of HotSpot, when available
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private final Method allocatedBytes;
+
+	//Bytes allocated by reading the allocation counter, taken out of every measure
+	private final long allocationOverhead;
+
+	//Time and bytes of the calls measured so far
+	private long nanos;
+	private long bytes;
+
+	public FoolAgentBenchmark(int iterations, int agents, double warmupSeconds) {
+		this.iterations = iterations;
+		this.agents = agents;
+		this.warmupNanos = (long) (warmupSeconds * 1e9);
+		this.allocatedBytes = allocatedBytesMethod();
+		// Reflective calls change implementation after a few uses, which allocates
+		for (int i = 0; i < 100; i++)
+			allocatedBytes();
+		long first = allocatedBytes();
+		this.allocationOverhead = allocatedBytes() - first;
+	}
+
+	/**
+	 * One step of the decision cycle to measure.
+	 */
+	interface Operation {
+		void run(BenchmarkAgent agent, SyntheticMarket.Reports reports, SimulationStatus status);
+	}
+
+	/**
+	 * Agent whose bids are placed directly in a market while it is played, and dropped
+	 * otherwise.
+	 */
+	static class BenchmarkAgent extends FoolAgent {
+
+		//Market the bids are placed in, null to drop them
+		SyntheticMarket market;
+
+		BenchmarkAgent() {
+			decisionLogLevel = DecisionLog.Level.OFF;
+			// The handlers are called directly
+			pipelinedIngestion = false;
+		}
+
+		@Override
+		protected void sendMessage(String receiver, Transportable content) {
+			if (content instanceof BidBundle && market != null)
+				market.placeBids((BidBundle) content);
+		}
+	}
+
+	public static void main(String[] args) {
+		String sizes = args.length > 0 ? args[0] : "3x3,10x10,30x30,100x100,200x100";
+		String days = args.length > 1 ? args[1] : "10,30,60";
+		int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+		int agents = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+		double warmupSeconds = args.length > 4 ? Double.parseDouble(args[4]) : 2;
+
+		FoolAgentBenchmark benchmark = new FoolAgentBenchmark(iterations, agents, warmupSeconds);
+		System.out.format("%-28s %9s %5s %6s %14s %14s%n", "benchmark", "products", "day", "ops", "ns/op", "bytes/op");
+		for (String size : sizes.split(",")) {
+			String[] dimensions = size.trim().split("x");
+			int manufacturers = Integer.parseInt(dimensions[0]);
+			int components = Integer.parseInt(dimensions[1]);
+			for (String day : days.split(","))
+				benchmark.runAll(manufacturers, components, Integer.parseInt(day.trim()));
+		}
+	}
+
+	/**
+	 * Runs every benchmark for a catalog size and a simulation day.
+	 */
+	void runAll(int manufacturers, int components, int day) {
+		final int products = manufacturers * components;
+		final SimulationStatus next = new SimulationStatus(day + 1, 0);
+
+		// The first agent places its bids in the market, the others are sent the same
+		// reports and compute the same bids. The last one is used for the warm-ups.
+		SyntheticMarket market = new SyntheticMarket(day, manufacturers, components, day + 2);
+		BenchmarkAgent[] pool = new BenchmarkAgent[agents + 1];
+		for (int a = 0; a < pool.length; a++)
+			pool[a] = new BenchmarkAgent();
+		SyntheticMarket.Reports reports = playUntil(pool, market, day);
+		BenchmarkAgent warmup = pool[agents];
+
+		BenchmarkAgent agent = pool[0];
+		final BitSet spikes = (BitSet) agent.queryState.spikeDetect.clone();
+		final BitSet previousSpikes = (BitSet) agent.queryState.spikeDetectPreviousDay.clone();
+		measureRepeated("spikeDetection", products, day, agent, reports, new Operation() {
+			@Override
+			public void run(BenchmarkAgent agent, SyntheticMarket.Reports reports, SimulationStatus status) {
+				agent.spikeDetection();
+			}
+		}, new Operation() {
+			@Override
+			public void run(BenchmarkAgent agent, SyntheticMarket.Reports reports, SimulationStatus status) {
+				restore(agent.queryState.spikeDetect, spikes);
+				restore(agent.queryState.spikeDetectPreviousDay, previousSpikes);
+			}
+		});
+		measureRepeated("computeQueryBidLimits", products, day, agent, reports, new Operation() {
+			@Override
+			public void run(BenchmarkAgent agent, SyntheticMarket.Reports reports, SimulationStatus status) {
+				agent.computeQueryBidLimits();
+			}
+		}, null);
+
+		// The day of each agent, in the order the server sends the messages
+		List<String> names = new ArrayList<String>();
+		List<Operation> cycle = new ArrayList<Operation>();
+		names.add("handleQueryReport");
+		cycle.add(new Operation() {
+			@Override
+			public void run(BenchmarkAgent agent, SyntheticMarket.Reports reports, SimulationStatus status) {
+				agent.handleQueryReport(reports.getQueryReport());
+			}
+		});
+		names.add("handleSalesReport");
+		cycle.add(new Operation() {
+			@Override
+			public void run(BenchmarkAgent agent, SyntheticMarket.Reports reports, SimulationStatus status) {
+				agent.handleSalesReport(reports.getSalesReport());
+			}
+		});
+		names.add("handleSimulationStatus");
+		cycle.add(new Operation() {
+			@Override
+			public void run(BenchmarkAgent agent, SyntheticMarket.Reports reports, SimulationStatus status) {
+				agent.handleSimulationStatus(status);
+			}
+		});
+
+		// Repeating the day on the warm-up agent changes its state, which does not matter
+		long start = System.nanoTime();
+		for (int w = 0; w < iterations || System.nanoTime() - start < warmupNanos; w++)
+			for (Operation operation : cycle)
+				operation.run(warmup, reports, next);
+
+		long[] cycleNanos = new long[cycle.size()];
+		long[] cycleBytes = new long[cycle.size()];
+		for (int a = 0; a < agents; a++) {
+			for (int i = 0; i < cycle.size(); i++) {
+				nanos = 0;
+				bytes = 0;
+				measure(cycle.get(i), pool[a], reports, next);
+				cycleNanos[i] += nanos;
+				cycleBytes[i] += bytes;
+			}
+		}
+		for (int i = 0; i < cycle.size(); i++)
+			print(names.get(i), products, day, agents, cycleNanos[i], cycleBytes[i]);
+
+		for (BenchmarkAgent member : pool)
+			member.simulationFinished();
+	}
+
+	/**
+	 * Measures a step that keeps the state of the agent, or whose state is restored after
+	 * each call by an operation that is not measured.
+	 */
+	private void measureRepeated(String name, int products, int day, BenchmarkAgent agent,
+			SyntheticMarket.Reports reports, Operation operation, Operation restore) {
+		long start = System.nanoTime();
+		for (int w = 0; w < iterations || System.nanoTime() - start < warmupNanos; w++) {
+			operation.run(agent, reports, null);
+			if (restore != null)
+				restore.run(agent, reports, null);
+		}
+
+		nanos = 0;
+		bytes = 0;
+		for (int n = 0; n < iterations; n++) {
+			measure(operation, agent, reports, null);
+			if (restore != null)
+				restore.run(agent, reports, null);
+		}
+		print(name, products, day, iterations, nanos, bytes);
+	}
+
+	/**
+	 * Adds the time and the bytes allocated of one call of a step.
+	 */
+	private void measure(Operation operation, BenchmarkAgent agent, SyntheticMarket.Reports reports,
+			SimulationStatus status) {
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		operation.run(agent, reports, status);
+		nanos += System.nanoTime() - start;
+		bytes += allocatedBytes() - allocated - allocationOverhead;
+	}
+
+	private void print(String name, int products, int day, int ops, long nanos, long bytes) {
+		System.out.format("%-28s %9d %5d %6d %14.0f %14s%n", name, products, day, ops,
+				(double) nanos / ops, allocatedBytes == null ? "n/a" : String.valueOf(bytes / ops));
+	}
+
+	private static void restore(BitSet bits, BitSet saved) {
+		bits.clear();
+		bits.or(saved);
+	}
+
+	/**
+	 * Plays a game up to a simulation day with all the agents of a pool, which are sent
+	 * the same messages. The bids of the first agent are placed in the market.
+	 * @return the reports of the last played day
+	 */
+	static SyntheticMarket.Reports playUntil(BenchmarkAgent[] pool, SyntheticMarket market, int day) {
+		for (BenchmarkAgent agent : pool) {
+			agent.simulationSetup();
+			agent.handleStartInfo(market.getStartInfo());
+			agent.handleSlotInfo(market.getSlotInfo());
+			agent.handleRetailCatalog(market.getRetailCatalog());
+			agent.handleAdvertiserInfo(market.getAdvertiserInfo());
+			agent.handlePublisherInfo(market.getPublisherInfo());
+			agent.handleSimulationStatus(new SimulationStatus(0, 0));
+		}
+
+		pool[0].market = market;
+		SyntheticMarket.Reports reports = market.runDay();
+		for (int d = 1; d <= day; d++) {
+			for (BenchmarkAgent agent : pool) {
+				agent.handleQueryReport(reports.getQueryReport());
+				agent.handleSalesReport(reports.getSalesReport());
+				agent.handleSimulationStatus(new SimulationStatus(d, 0));
+			}
+			reports = market.runDay();
+		}
+		pool[0].market = null;
+		return reports;
+	}
+
+	private long allocatedBytes() {
+		if (allocatedBytes == null)
+			return 0;
+		try {
+			return (Long) allocatedBytes.invoke(threads, Thread.currentThread().getId());
+		} catch (Exception e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Looks up the HotSpot extension that counts the bytes allocated by a thread.
+	 */
+	private Method allocatedBytesMethod() {
+		try {
+			Class<?> hotspotThreads = Class.forName("com.sun.management.ThreadMXBean");
+			if (!hotspotThreads.isInstance(threads))
+				return null;
+			return hotspotThreads.getMethod("getThreadAllocatedBytes", long.class);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
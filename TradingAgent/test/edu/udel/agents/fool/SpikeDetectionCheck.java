@@ -0,0 +1,203 @@
+package edu.udel.agents.fool;
+
+import net.sf.javaml.clustering.KMeans;
+import net.sf.javaml.core.Dataset;
+import net.sf.javaml.core.DefaultDataset;
+import net.sf.javaml.core.DenseInstance;
+import net.sf.javaml.tools.DatasetTools;
+
+import java.lang.reflect.Field;
+import java.util.Random;
+
+/**
+ * Checks the spike detection of {@link FoolAgent} against the javaml KMeans path it
+ * replaced, on random impression histories drawn from a fixed seed.
+ * <ul>
+ * <li>The {@link TwoMeansSpikeDetector} must take the same decision as KMeans(2) with the
+ * same thresholds, unless KMeans stopped in a local optimum: a history where they differ
+ * only passes if the exact split has a within-cluster sum of squares no larger than the
+ * one KMeans found.</li>
+ * <li>A query whose impressions keep spiking is flagged every other day: a spike lasts
+ * one day, and the day after it the query bids as usual. The check runs six days and
+ * asserts the flag of every one of them.</li>
+ * </ul>
+ * KMeans seeds its centers from the clock, so its generator is replaced by one derived
+ * from the seed. The check prints its counts and exits with status 1 if any case fails.
+ * <p>
+ * Usage: <code>SpikeDetectionCheck [histories [seed]]</code>
+ */
+public class SpikeDetectionCheck {
+
+	//Relative slack of the sums of squares compared
+	private static final double TOLERANCE = 1e-9;
+
+	private final int minPoints;
+	private final double minDifference;
+	private final int capacity;
+
+	private int agreements = 0;
+	private int localOptima = 0;
+	private int failures = 0;
+
+	SpikeDetectionCheck(int capacity, int minPoints, double minDifference) {
+		this.capacity = capacity;
+		this.minPoints = minPoints;
+		this.minDifference = minDifference;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int histories = args.length > 0 ? Integer.parseInt(args[0]) : 3000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+
+		FoolAgent defaults = new OfflineAgent();
+		SpikeDetectionCheck check = new SpikeDetectionCheck(defaults.impressionHistoryDays,
+				defaults.minSpikeImpressionsDays, defaults.parameters.getMinSpikeImpressionsDifference());
+		check.compareWithKMeans(histories, seed);
+		boolean oneDay = checkOneDaySpikes();
+
+		System.out.format("%d histories: %d same decision, %d KMeans local optima, %d failures%n",
+				histories, check.agreements, check.localOptima, check.failures);
+		System.out.println("spike lasts one day: " + (oneDay ? "ok" : "FAILED"));
+		if (check.failures > 0 || !oneDay)
+			System.exit(1);
+	}
+
+	/**
+	 * Compares the decisions of the two detectors on random histories.
+	 */
+	void compareWithKMeans(int histories, long seed) throws Exception {
+		Random random = new Random(seed);
+		KMeans kmeans = new KMeans(2);
+		Field generator = KMeans.class.getDeclaredField("rg");
+		generator.setAccessible(true);
+		generator.set(kmeans, new Random(seed));
+
+		TwoMeansSpikeDetector detector = new TwoMeansSpikeDetector(capacity, minPoints, minDifference);
+		detector.setup(1);
+		for (int h = 0; h < histories; h++) {
+			DoubleRingBuffer history = randomHistory(random);
+			boolean exact = detector.detect(0, history);
+			double exactSquares = exact || detector.getPeak() != 0
+					? squares(history, detector.getBaseline(), detector.getPeak()) : Double.NaN;
+
+			// KMeans never returns on a constant history, which has no spike anyway
+			boolean approximate = false;
+			double approximateSquares = Double.NaN;
+			if (history.size() >= minPoints && !constant(history)) {
+				Dataset data = new DefaultDataset();
+				for (int i = 0; i < history.size(); i++)
+					data.add(new DenseInstance(new double[] { history.get(i) }));
+				Dataset[] clusters = kmeans.cluster(data);
+				if (clusters.length == 2 && clusters[0].size() > 0 && clusters[1].size() > 0) {
+					double first = DatasetTools.average(clusters[0]).value(0);
+					double second = DatasetTools.average(clusters[1]).value(0);
+					double low = Math.min(first, second);
+					double high = Math.max(first, second);
+					approximate = low != 0 && high - low > minDifference * low;
+					approximateSquares = squares(clusters[0], first) + squares(clusters[1], second);
+				}
+			}
+
+			if (exact == approximate)
+				agreements++;
+			else if (!Double.isNaN(exactSquares) && !Double.isNaN(approximateSquares)
+					&& exactSquares <= approximateSquares * (1 + TOLERANCE) + TOLERANCE)
+				localOptima++;
+			else {
+				failures++;
+				System.err.format("history %d: two-means %b, KMeans %b, sums of squares %.3f and %.3f%n",
+						h, exact, approximate, exactSquares, approximateSquares);
+			}
+		}
+	}
+
+	/**
+	 * Draws a daily impression history: a noisy level, on some histories with bursts, and
+	 * now and then a short or constant one.
+	 */
+	private DoubleRingBuffer randomHistory(Random random) {
+		DoubleRingBuffer history = new DoubleRingBuffer(capacity);
+		int days = minPoints - 2 + random.nextInt(capacity - minPoints + 3);
+		double level = 50 + random.nextInt(950);
+		boolean constant = random.nextInt(20) == 0;
+		double burstChance = random.nextBoolean() ? 0.1 : 0;
+		for (int d = 0; d < days; d++) {
+			double impressions = constant ? level : level * (0.9 + 0.2 * random.nextDouble());
+			if (random.nextDouble() < burstChance)
+				impressions *= 1.5 + 1.5 * random.nextDouble();
+			history.add(Math.round(impressions));
+		}
+		return history;
+	}
+
+	private static boolean constant(DoubleRingBuffer history) {
+		for (int i = 1; i < history.size(); i++)
+			if (history.get(i) != history.get(0))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Sum of squares of the values to the nearer of two centers.
+	 */
+	private static double squares(DoubleRingBuffer history, double low, double high) {
+		double sum = 0;
+		for (int i = 0; i < history.size(); i++) {
+			double value = history.get(i);
+			sum += Math.min((value - low) * (value - low), (value - high) * (value - high));
+		}
+		return sum;
+	}
+
+	private static double squares(Dataset cluster, double center) {
+		double sum = 0;
+		for (int i = 0; i < cluster.size(); i++) {
+			double value = cluster.instance(i).value(0);
+			sum += (value - center) * (value - center);
+		}
+		return sum;
+	}
+
+	/**
+	 * Runs the spike detection of an agent on consecutive days, resetting the spikes in
+	 * between like the agent does, for a query that keeps spiking and one that does not.
+	 * The spiking query must be flagged on alternate days, starting with the first, and
+	 * the other query never. The flags of each day are printed.
+	 * @return true if every day has the expected flags
+	 */
+	static boolean checkOneDaySpikes() {
+		OfflineAgent agent = new OfflineAgent();
+		agent.decisionLogLevel = DecisionLog.Level.OFF;
+		SyntheticMarket market = new SyntheticMarket(1, 3, 3, 60);
+		agent.setup();
+		agent.deliver(market.getStartInfo());
+		agent.deliver(market.getSlotInfo());
+		agent.deliver(market.getRetailCatalog());
+		agent.deliver(market.getAdvertiserInfo());
+		agent.deliver(market.getPublisherInfo());
+
+		int spiking = 0;
+		int flat = 1;
+		for (int d = 0; d < 20; d++) {
+			agent.queryState.impressionHistory[spiking].add(d % 5 == 4 ? 300 : 100);
+			agent.queryState.impressionHistory[flat].add(100);
+		}
+
+		boolean[] expected = { true, false, true, false, true, false };
+		StringBuilder flags = new StringBuilder();
+		boolean ok = true;
+		for (int day = 0; day < expected.length; day++) {
+			agent.simulationDay = 20 + day;
+			agent.spikeDetection();
+			boolean flagged = agent.queryState.spikeDetect.get(spiking);
+			flags.append(flagged ? 'S' : '-');
+			ok &= flagged == expected[day];
+			ok &= agent.queryState.spikeDetectPreviousDay.get(spiking) == expected[day];
+			ok &= !agent.queryState.spikeDetect.get(flat);
+			agent.queryState.spikeDetect.clear();
+		}
+		agent.finish();
+		System.out.println("spike flags by day: " + flags + " (expected S-S-S-)");
+		return ok;
+	}
+}